@@ -0,0 +1,5 @@
+# ProGuard rules which are applied to apps that use this library.
+
+# DiffStrategy.myers() uses java-diff-utils, which is only a provided dependency. Apps which don't use it (and so don't
+# depend on java-diff-utils themselves) would otherwise get warnings about its classes being missing.
+-dontwarn difflib.**
@@ -2,8 +2,10 @@ package com.bkromhout.rrvl;
 
 /**
  * Implementing classes will be called upon to provide text to put in the bubble of the fast scroller. Good candidates
- * for such classes are the concrete adapter classes or any other class which has access to a copy of the same {@code
- * RealmResults} that the adapter is using.
+ * for such classes are the concrete adapter classes or any other class which has access to the adapter.
+ * <p/>
+ * Positions are the adapter's, so look items up using {@link RealmRecyclerViewAdapter#getItem(int)} rather than by
+ * reading from the {@code RealmResults}, which may be ahead of the adapter.
  */
 public interface BubbleTextProvider {
     /**
@@ -0,0 +1,19 @@
+package com.bkromhout.rrvl;
+
+/**
+ * Realm model classes can implement this alongside {@link UIDModel} so that a {@link RealmRecyclerViewAdapter} can
+ * tell when the content of an item has changed, not just its position.
+ * <p/>
+ * When the {@code RealmResults} change, the adapter compares each item's version to the one it had before, and only
+ * notifies the {@code RecyclerView} of changes for items whose version is different. Those notifications carry {@link
+ * RealmRecyclerViewAdapter#CONTENT_CHANGED_PAYLOAD}, so {@code onBindViewHolder(holder, position, payloads)} can do a
+ * partial update.
+ */
+public interface ContentVersionModel {
+    /**
+     * Return a value which changes whenever the displayed content of this model object instance changes, such as a hash
+     * of the displayed fields or a version field which is incremented on each write.
+     * @return Version of this model object instance's content.
+     */
+    long getContentVersion();
+}
@@ -0,0 +1,296 @@
+package com.bkromhout.rrvl;
+
+import difflib.Delta;
+import difflib.DiffUtils;
+import difflib.Patch;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Decides how a {@link RealmRecyclerViewAdapter} works out which notifications to send when its {@code RealmResults}
+ * change. Set one using {@link RealmRecyclerViewAdapter#setDiffStrategy(DiffStrategy)}.
+ * <p/>
+ * The library comes with these strategies, which work directly on the adapter's internal UID snapshots:<ul><li>{@link
+ * #adaptive()}: The default. Picks the cheapest approach for each change based on the sizes of the lists and on how
+ * previous diffs went.</li><li>{@link #uidHash()}: Always does a full UID diff, which finds inserts, removes, and the
+ * fewest possible moves.</li><li>{@link #appendOnly()}: For lists which usually only grow at the start or end, such as
+ * logs. Only does a full UID diff if the change wasn't an append or prepend.</li><li>{@link #myers()}: The Myers diff
+ * from java-diff-utils, which this library used to use. It never finds moves other than single item ones, it doesn't
+ * send content changes for {@link ContentVersionModel}s, and it requires that your app depends on java-diff-utils
+ * itself.</li></ul>
+ * <p/>
+ * To use some other approach, extend this class and override {@link #calculate(List, List, Callback)}.
+ */
+public abstract class DiffStrategy {
+    /**
+     * Receives the notifications worked out by a custom {@link DiffStrategy}. They are sent to the {@code RecyclerView}
+     * in the order they are given, so each position is relative to the list as it is after the notifications before
+     * it.
+     */
+    public interface Callback {
+        /**
+         * {@code count} items were inserted at {@code position}.
+         */
+        void onInserted(int position, int count);
+
+        /**
+         * {@code count} items were removed, starting at {@code position}.
+         */
+        void onRemoved(int position, int count);
+
+        /**
+         * The item at {@code fromPosition} was moved to {@code toPosition}.
+         */
+        void onMoved(int fromPosition, int toPosition);
+
+        /**
+         * The content of the {@code count} items starting at {@code position} changed.
+         */
+        void onChanged(int position, int count);
+    }
+
+    protected DiffStrategy() {
+    }
+
+    /**
+     * Get a strategy which picks an approach for each change. This is the default.
+     * <p/>
+     * If the list grew, it first checks (cheaply) whether the change was an append or prepend. Otherwise it does a
+     * full UID diff, unless the adapter has a diff budget and previous diffs suggest that this one wouldn't finish in
+     * time, in which case it doesn't try at all.
+     * <p/>
+     * The returned strategy keeps track of how previous diffs went, so don't share it between adapters.
+     * @return New adaptive strategy.
+     */
+    public static DiffStrategy adaptive() {
+        return new Adaptive();
+    }
+
+    /**
+     * Get a strategy which always does a full UID diff.
+     * @return UID diff strategy.
+     */
+    public static DiffStrategy uidHash() {
+        return UIDHash.INSTANCE;
+    }
+
+    /**
+     * Get a strategy for lists which usually only grow at the start or end.
+     * @return Append-only strategy.
+     */
+    public static DiffStrategy appendOnly() {
+        return AppendOnly.INSTANCE;
+    }
+
+    /**
+     * Get a strategy which uses the Myers diff from java-diff-utils. Your app must depend on {@code
+     * com.github.bkromhout:java-diff-utils} to use this. It can't be given up on part way through, so it ignores the
+     * adapter's diff budget. It only compares UIDs, so it also ignores {@link ContentVersionModel} and never sends
+     * {@link RealmRecyclerViewAdapter#CONTENT_CHANGED_PAYLOAD}.
+     * @return Myers strategy.
+     */
+    public static DiffStrategy myers() {
+        return Myers.INSTANCE;
+    }
+
+    /**
+     * Work out the notifications needed to go from {@code oldUIDs} to {@code newUIDs}. Custom strategies must override
+     * this; the default implementation gives up, so the adapter calls {@code notifyDataSetChanged()} instead.
+     * <p/>
+     * This is called on a background thread if the adapter diffs asynchronously (see {@link
+     * RealmRecyclerViewAdapter#setAsyncDiffing(boolean)}), and the adapter's diff budget isn't applied to it. If the
+     * notifications don't add up to the new item count, the adapter falls back to {@code notifyDataSetChanged()}.
+     * @param oldUIDs  UIDs of the items as the {@code RecyclerView} knows them. Read-only.
+     * @param newUIDs  UIDs of the items now. Read-only.
+     * @param callback Callback to give the notifications to.
+     * @return True if finished, or false to give up and have the adapter call {@code notifyDataSetChanged()}.
+     */
+    @SuppressWarnings("unused")
+    protected boolean calculate(List<Object> oldUIDs, List<Object> newUIDs, Callback callback) {
+        return false;
+    }
+
+    /**
+     * Calculate the notifications needed to go from {@code oldIds} to {@code newIds}. Strategies which come with the
+     * library override this; for custom ones, it calls {@link #calculate(List, List, Callback)}.
+     * @param diff          Diff whose working arrays may be used. Only used by one thread at a time.
+     * @param oldIds        Old UIDs.
+     * @param newIds        New UIDs.
+     * @param out           Batch to add notifications to.
+     * @param deadlineNanos {@link System#nanoTime()} value after which to give up, or {@link UIDDiff#NO_DEADLINE}.
+     * @return True if finished, or false if the strategy gave up, in which case {@code out} must not be dispatched.
+     */
+    boolean calculate(UIDDiff diff, UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out, long deadlineNanos) {
+        return calculate(asList(oldIds), asList(newIds), new BatchCallback(out));
+    }
+
+    /**
+     * Get a read-only view of {@code ids}.
+     */
+    static List<Object> asList(final UIDSnapshot ids) {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int location) {
+                return ids.getUID(location);
+            }
+
+            @Override
+            public int size() {
+                return ids.size();
+            }
+        };
+    }
+
+    /**
+     * If {@code newIds} is {@code oldIds} with UIDs appended or prepended, add the notifications for that to {@code
+     * out}.
+     * @return True if the change was an append or prepend, otherwise false (and nothing was added to {@code out}).
+     */
+    static boolean calculateEdgeInsert(UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out) {
+        int oldSize = oldIds.size(), count = newIds.size() - oldSize;
+        if (count < 0) return false;
+        int start;
+        if (newIds.regionMatches(0, oldIds, 0, oldSize)) start = oldSize;
+        else if (newIds.regionMatches(count, oldIds, 0, oldSize)) start = 0;
+        else return false;
+
+        UIDDiff.addAlignedContentChanges(oldIds, 0, newIds, start == 0 ? count : 0, oldSize, out);
+        out.addInsert(start, count);
+        return true;
+    }
+
+    /**
+     * Adds the notifications from a custom strategy to an {@link UpdateBatch}.
+     */
+    private static final class BatchCallback implements Callback {
+        private final UpdateBatch out;
+
+        BatchCallback(UpdateBatch out) {
+            this.out = out;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            out.addInsert(position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            out.addRemove(position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            out.addMove(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            out.addChange(position, count);
+        }
+    }
+
+    static final class UIDHash extends DiffStrategy {
+        static final UIDHash INSTANCE = new UIDHash();
+
+        @Override
+        boolean calculate(UIDDiff diff, UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out, long deadlineNanos) {
+            return diff.calculate(oldIds, newIds, out, deadlineNanos);
+        }
+    }
+
+    static final class AppendOnly extends DiffStrategy {
+        static final AppendOnly INSTANCE = new AppendOnly();
+
+        @Override
+        boolean calculate(UIDDiff diff, UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out, long deadlineNanos) {
+            return calculateEdgeInsert(oldIds, newIds, out) || diff.calculate(oldIds, newIds, out, deadlineNanos);
+        }
+    }
+
+    static final class Adaptive extends DiffStrategy {
+        /**
+         * Below this many items (old and new together), diffs are too quick for it to be worth predicting their cost.
+         */
+        private static final int MIN_PREDICTED_ITEMS = 10000;
+
+        /**
+         * Average cost of a UID diff in nanoseconds per item, or 0 before the first diff. Updated from whichever thread
+         * did the diff; an occasionally stale value does no harm.
+         */
+        private volatile double nanosPerItem = 0d;
+        /**
+         * Whether the last diff moved a large part of the list, which makes the next one likely to be expensive too.
+         */
+        private volatile boolean lastWasReorder = false;
+
+        @Override
+        boolean calculate(UIDDiff diff, UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out, long deadlineNanos) {
+            int oldSize = oldIds.size(), newSize = newIds.size();
+            // Checking for an append or prepend costs at most two passes over the old list, stopping at mismatches.
+            if (newSize > oldSize && calculateEdgeInsert(oldIds, newIds, out)) return true;
+
+            int items = oldSize + newSize;
+            long start = System.nanoTime();
+            if (deadlineNanos != UIDDiff.NO_DEADLINE && items >= MIN_PREDICTED_ITEMS && nanosPerItem > 0d) {
+                double predicted = nanosPerItem * items * (lastWasReorder ? 2 : 1);
+                if (start + predicted > deadlineNanos) return false;
+            }
+
+            boolean finished = diff.calculate(oldIds, newIds, out, deadlineNanos);
+            // Even an unfinished diff tells us that diffing costs at least this much.
+            double sample = (System.nanoTime() - start) / (double) items;
+            nanosPerItem = nanosPerItem == 0d ? sample : nanosPerItem * .75d + sample * .25d;
+            lastWasReorder = !finished || out.getMoveCount() > Math.min(oldSize, newSize) / 4;
+            return finished;
+        }
+    }
+
+    static final class Myers extends DiffStrategy {
+        static final Myers INSTANCE = new Myers();
+
+        @Override
+        boolean calculate(UIDDiff diff, UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out, long deadlineNanos) {
+            Patch patch = DiffUtils.diff(asList(oldIds), asList(newIds));
+            //noinspection unchecked
+            List<Delta> deltas = patch.getDeltas();
+
+            if (deltas.size() == 2 && areDeltasFromMove(deltas.get(0), deltas.get(1))) {
+                Delta insert = deltas.get(0).getType() == Delta.TYPE.INSERT ? deltas.get(0) : deltas.get(1);
+                Delta delete = deltas.get(0).getType() == Delta.TYPE.DELETE ? deltas.get(0) : deltas.get(1);
+                out.addMove(delete.getOriginal().getPosition(), insert.getRevised().getPosition());
+                return true;
+            }
+
+            // Go through the deltas backwards so that the original positions are still right when we get to each one.
+            for (int i = deltas.size() - 1; i >= 0; i--) {
+                Delta d = deltas.get(i);
+                int position = d.getOriginal().getPosition();
+                if (d.getType() != Delta.TYPE.INSERT) out.addRemove(position, d.getOriginal().size());
+                if (d.getType() != Delta.TYPE.DELETE) out.addInsert(position, d.getRevised().size());
+            }
+            return true;
+        }
+
+        /**
+         * Check {@code delta1} and {@code delta2} to determine if, together, they represent a situation where an item
+         * has simply moved to somewhere else in the list.
+         * @param delta1 A delta.
+         * @param delta2 Another delta.
+         * @return True if the deltas represent an item having moved, otherwise false.
+         */
+        private static boolean areDeltasFromMove(Delta delta1, Delta delta2) {
+            // Check delta types, make sure we have one insert and one delete.
+            if (!((delta1.getType() == Delta.TYPE.INSERT && delta2.getType() == Delta.TYPE.DELETE)
+                    || (delta1.getType() == Delta.TYPE.DELETE && delta2.getType() == Delta.TYPE.INSERT))) return false;
+            // Figure out which is which.
+            Delta insert = delta1.getType() == Delta.TYPE.INSERT ? delta1 : delta2;
+            Delta delete = delta2.getType() == Delta.TYPE.DELETE ? delta2 : delta1;
+            // Make sure they only affect one "line".
+            if (delete.getOriginal().size() != 1 || insert.getRevised().size() != 1) return false;
+            // And make sure that that "line" has the same content.
+            return delete.getOriginal().getLines().get(0).equals(insert.getRevised().getLines().get(0));
+        }
+    }
+}
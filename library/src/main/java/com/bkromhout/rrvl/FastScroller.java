@@ -4,11 +4,15 @@ import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ObjectAnimator;
 import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.view.ViewCompat;
-import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -16,6 +20,9 @@ import android.view.ViewTreeObserver;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Implementation of a fast scroller for our RecyclerView.
  */
@@ -23,23 +30,138 @@ class FastScroller extends LinearLayout {
     private static final int BUBBLE_ANIMATION_DURATION = 100;
     private static final int HANDLE_ANIMATION_DURATION = 100;
     static final int DEFAULT_HANDLE_HIDE_DELAY = 2000;
+    /**
+     * Number of items whose bubble text is remembered when not using the section index. Must be a power of two.
+     */
+    private static final int BUBBLE_TEXT_CACHE_SIZE = 64;
+    /**
+     * How far ahead (in milliseconds) to predict where a drag is going, when prefetching.
+     */
+    private static final int PREFETCH_LOOKAHEAD_MS = 100;
 
     private View handle;
     private TextView bubble;
     private RecyclerView recyclerView;
+    private RecyclerView.Adapter adapter;
 
-    private ObjectAnimator currentBubbleShowAnimator = null;
-    private ObjectAnimator currentBubbleHideAnimator = null;
-    private ObjectAnimator currentHandleShowAnimator = null;
-    private ObjectAnimator currentHandleHideAnimator = null;
+    private Fader bubbleFader;
+    private Fader handleFader;
     private int height;
+    /**
+     * The recycler view's scroll range and extent, which only change when it's laid out or its adapter changes, or -1
+     * if they need to be computed again.
+     */
+    private int scrollRange = -1;
+    private int scrollExtent = -1;
 
     private boolean autoHideHandle = false;
     private int autoHideDelay = DEFAULT_HANDLE_HIDE_DELAY;
     private boolean useBubble = false;
     private BubbleTextProvider bubbleTextProvider = null;
+    private boolean useSectionIndex = false;
+    private final SectionIndex sectionIndex = new SectionIndex();
+    /**
+     * Whether {@link #sectionIndex} matches the adapter. It's only built once it's needed.
+     */
+    private boolean sectionIndexValid = false;
+    /**
+     * Positions in {@link #sectionIndex} whose text needs to be read again. Notifications may arrive in an order where
+     * a position doesn't yet mean what it will once the whole batch has been sent, so text is only read from the
+     * {@link #bubbleTextProvider} once it's next needed.
+     */
+    private final PositionSelection staleSections = new PositionSelection();
+    /**
+     * Recently read bubble text, for when we aren't using the section index. Each position can only be cached in the
+     * slot {@code position % BUBBLE_TEXT_CACHE_SIZE}, and {@link #bubbleTextCachePositions} holds the position whose
+     * text is in each slot (or -1), so that looking text up doesn't need to box the position.
+     */
+    private final int[] bubbleTextCachePositions = new int[BUBBLE_TEXT_CACHE_SIZE];
+    private final String[] bubbleTextCacheTexts = new String[BUBBLE_TEXT_CACHE_SIZE];
+    private boolean useMeasuredHeights = false;
+    /**
+     * Heights of rows (not items, in a grid), and the span count which they were recorded for.
+     */
+    private final RowHeightIndex rowHeights = new RowHeightIndex();
+    private int rowHeightsSpanCount = 1;
     private FastScrollHandleStateListener handleStateListener = null;
-    private boolean eatVisibilityUpdates = false;
+    /**
+     * Latest Y position of a drag which hasn't been applied yet. Touch screens can report several moves per frame, so
+     * we only move the handle and scroll the recycler view once per frame, to wherever the touch is by then.
+     */
+    private float pendingDragY;
+    private boolean dragPending = false;
+    /**
+     * Drag speed in positions per millisecond, and the last drag target and when we scrolled to it, used to predict
+     * where the drag will be shortly so that we can get ready for it.
+     */
+    private float positionsPerMs = 0f;
+    private int lastTargetPos = -1;
+    private long lastTargetTime = 0L;
+    /**
+     * First position of the window which {@link #prefetcher} should get ready, and the last window which it did.
+     */
+    private int prefetchPos = -1;
+    private int prefetchedPos = -1;
+    private boolean prefetchScheduled = false;
+    /**
+     * Number of positions in the window which {@link #prefetcher} has created (or skipped) view holders for during the
+     * current drag.
+     */
+    private int warmedViewHolders = 0;
+    /**
+     * View types which the recycled view pool had no room for during the current drag, so {@link #prefetcher} stops
+     * creating view holders for them.
+     */
+    private final SparseBooleanArray fullViewTypes = new SparseBooleanArray();
+    /**
+     * Scratch list for the view holders taken out of the pool by {@link #putIfRoom(RecyclerView.RecycledViewPool,
+     * RecyclerView.ViewHolder)}.
+     */
+    private final ArrayList<RecyclerView.ViewHolder> poolScratch = new ArrayList<>();
+    /**
+     * While the handle is being dragged, uses idle time on the UI thread to create view holders for the recycled view
+     * pool and to let the adapter read the items in the predicted window, so that the next jump is mostly binding.
+     * View holders are created one per idle period so that no single one takes too long.
+     */
+    private final MessageQueue.IdleHandler prefetcher = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (recyclerView == null || adapter == null || !handle.isSelected() || prefetchPos == -1) {
+                prefetchScheduled = false;
+                return false;
+            }
+            int windowSize = Math.max(1, recyclerView.getChildCount());
+            int end = Math.min(prefetchPos + windowSize, adapter.getItemCount());
+
+            if (prefetchedPos != prefetchPos && adapter instanceof RealmRecyclerViewAdapter) {
+                ((RealmRecyclerViewAdapter<?, ?>) adapter).prefetchItems(prefetchPos, end);
+                prefetchedPos = prefetchPos;
+            }
+
+            // The pool's limits are left as the app set them, so only view types which it has room for are warmed.
+            while (warmedViewHolders < windowSize && prefetchPos + warmedViewHolders < end) {
+                int viewType = adapter.getItemViewType(prefetchPos + warmedViewHolders);
+                warmedViewHolders++;
+                if (fullViewTypes.get(viewType)) continue;
+                //noinspection unchecked
+                RecyclerView.ViewHolder holder = adapter.createViewHolder(recyclerView, viewType);
+                if (!putIfRoom(recyclerView.getRecycledViewPool(), holder)) fullViewTypes.put(viewType, true);
+                return true;
+            }
+            prefetchScheduled = false;
+            return false;
+        }
+    };
+    private final Runnable applyPendingDrag = new Runnable() {
+        @Override
+        public void run() {
+            dragPending = false;
+            // The handle might have been released since this was posted.
+            if (!handle.isSelected()) return;
+            setBubbleAndHandlePosition(pendingDragY);
+            setRecyclerViewPosition(pendingDragY);
+        }
+    };
 
     /**
      * RecyclerView.OnScrollListener to make sure that we update the visibility of our views when scrolling the recycler
@@ -48,23 +170,127 @@ class FastScroller extends LinearLayout {
     private final RecyclerView.OnScrollListener onScrollListener = new RecyclerView.OnScrollListener() {
         @Override
         public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // This is also called after each layout, so it's where we pick up the heights of rows which were laid out.
+            if (useMeasuredHeights) recordRowHeights();
             if (handle.isSelected()) return;
+            // Flings which cover a quarter of the screen per frame are too fast for the rows to be seen properly.
+            if (recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_SETTLING) {
+                int fastScroll = recyclerView.getHeight() / 4;
+                if (Math.abs(dy) >= fastScroll) setScrubbing(true);
+                else if (Math.abs(dy) < fastScroll / 2) setScrubbing(false);
+            }
 
-            float proportion = computeScrollProportionRelativeToMax(recyclerView.computeVerticalScrollOffset(),
-                    recyclerView.computeVerticalScrollRange(), recyclerView.computeVerticalScrollExtent());
-
+            float proportion = computeScrollProportion();
             setBubbleAndHandlePosition(height * proportion, proportion);
         }
 
         @Override
         public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
             super.onScrollStateChanged(recyclerView, newState);
+            // Rows of different heights change the estimated scroll range as they're scrolled past.
+            if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                invalidateScrollMetrics();
+                if (!handle.isSelected()) setScrubbing(false);
+            }
             if (!autoHideHandle) return;
             if (newState == RecyclerView.SCROLL_STATE_IDLE) hideHandle();
             else showHandle();
         }
     };
 
+    /**
+     * View.OnLayoutChangeListener which lets us know that the recycler view's scroll range and extent may have changed.
+     */
+    private final View.OnLayoutChangeListener onLayoutChangeListener = new View.OnLayoutChangeListener() {
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right, int bottom, int oldLeft, int oldTop,
+                                   int oldRight, int oldBottom) {
+            invalidateScrollMetrics();
+        }
+    };
+
+    /**
+     * RecyclerView.AdapterDataObserver which keeps our bubble text up to date with the adapter. The section index is
+     * updated using just the items which changed, unless we're told that the whole data set changed. Inserted and
+     * changed items are only marked as stale here, since their text is read once the whole batch has been sent.
+     */
+    private final RecyclerView.AdapterDataObserver adapterObserver = new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onChanged() {
+            invalidateScrollMetrics();
+            invalidateBubbleText();
+            if (useMeasuredHeights) resetRowHeights();
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            invalidateScrollMetrics();
+            clearBubbleTextCache();
+            if (sectionIndexValid) staleSections.add(positionStart, positionStart + itemCount);
+            // The rows will be measured again when they're re-bound.
+            if (useMeasuredHeights) {
+                int firstRow = positionStart / rowHeightsSpanCount;
+                rowHeights.forget(firstRow, (positionStart + itemCount - 1) / rowHeightsSpanCount - firstRow + 1);
+            }
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+            // Selecting items or rebinding them after scrubbing doesn't change their text.
+            if (payload != RealmRecyclerViewAdapter.SELECTION_CHANGED_PAYLOAD
+                    && payload != RealmRecyclerViewAdapter.SCRUBBING_ENDED_PAYLOAD)
+                onItemRangeChanged(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            invalidateScrollMetrics();
+            clearBubbleTextCache();
+            if (sectionIndexValid) {
+                sectionIndex.insert(null, positionStart, itemCount);
+                staleSections.shiftForInsert(positionStart, itemCount);
+                staleSections.add(positionStart, positionStart + itemCount);
+            }
+            // In a grid, items move between rows, so the heights of the rows after them are no good anymore.
+            if (useMeasuredHeights) {
+                if (rowHeightsSpanCount == 1) rowHeights.insert(positionStart, itemCount);
+                else resetRowHeights();
+            }
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            invalidateScrollMetrics();
+            clearBubbleTextCache();
+            if (sectionIndexValid) {
+                sectionIndex.remove(positionStart, itemCount);
+                staleSections.shiftForRemove(positionStart, itemCount);
+            }
+            if (useMeasuredHeights) {
+                if (rowHeightsSpanCount == 1) rowHeights.remove(positionStart, itemCount);
+                else resetRowHeights();
+            }
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            invalidateScrollMetrics();
+            clearBubbleTextCache();
+            if (useMeasuredHeights) {
+                if (itemCount == 1 && rowHeightsSpanCount == 1) rowHeights.move(fromPosition, toPosition);
+                else resetRowHeights();
+            }
+            if (!sectionIndexValid) return;
+            if (itemCount == 1) {
+                sectionIndex.move(fromPosition, toPosition);
+                boolean stale = staleSections.contains(fromPosition);
+                staleSections.shiftForRemove(fromPosition, 1);
+                staleSections.shiftForInsert(toPosition, 1);
+                if (stale) staleSections.add(toPosition, toPosition + 1);
+            } else sectionIndexValid = false;
+        }
+    };
+
     public FastScroller(Context context) {
         this(context, null, 0);
     }
@@ -80,16 +306,24 @@ class FastScroller extends LinearLayout {
         LayoutInflater.from(context).inflate(R.layout.fast_scroller, this, true);
         bubble = (TextView) findViewById(R.id.fast_scroller_bubble);
         handle = findViewById(R.id.fast_scroller_handle);
+        bubbleFader = new Fader(bubble, BUBBLE_ANIMATION_DURATION, false);
+        handleFader = new Fader(handle, HANDLE_ANIMATION_DURATION, true);
+        clearBubbleTextCache();
     }
 
     void setRecyclerView(final RecyclerView recyclerView) {
         if (this.recyclerView != recyclerView) {
-            if (this.recyclerView != null) this.recyclerView.removeOnScrollListener(onScrollListener);
+            if (this.recyclerView != null) {
+                this.recyclerView.removeOnScrollListener(onScrollListener);
+                this.recyclerView.removeOnLayoutChangeListener(onLayoutChangeListener);
+            }
 
             this.recyclerView = recyclerView;
+            invalidateScrollMetrics();
             if (this.recyclerView == null) return;
 
             recyclerView.addOnScrollListener(onScrollListener);
+            recyclerView.addOnLayoutChangeListener(onLayoutChangeListener);
         }
 
         if (recyclerView != null)
@@ -99,9 +333,7 @@ class FastScroller extends LinearLayout {
                     recyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
                     if (handle.isSelected()) return true;
 
-                    float proportion = computeScrollProportionRelativeToMax(recyclerView.computeVerticalScrollOffset(),
-                            recyclerView.computeVerticalScrollRange(), recyclerView.computeVerticalScrollExtent());
-
+                    float proportion = computeScrollProportion();
                     setBubbleAndHandlePosition(height * proportion, proportion);
                     return true;
                 }
@@ -155,12 +387,44 @@ class FastScroller extends LinearLayout {
         this.useBubble = useBubble;
     }
 
+    /**
+     * Set the adapter whose changes should be tracked to keep the bubble text up to date.
+     * @param adapter Adapter which was set on the recycler view.
+     */
+    void setAdapter(RecyclerView.Adapter adapter) {
+        if (this.adapter == adapter) return;
+        if (this.adapter != null) this.adapter.unregisterAdapterDataObserver(adapterObserver);
+        this.adapter = adapter;
+        if (adapter != null) adapter.registerAdapterDataObserver(adapterObserver);
+        invalidateBubbleText();
+        if (useMeasuredHeights) resetRowHeights();
+    }
+
     /**
      * Set the {@link BubbleTextProvider} to use.
      * @param bubbleTextProvider Bubble text provider.
      */
     void setBubbleTextProvider(BubbleTextProvider bubbleTextProvider) {
         this.bubbleTextProvider = bubbleTextProvider;
+        invalidateBubbleText();
+    }
+
+    boolean getUseSectionIndex() {
+        return useSectionIndex;
+    }
+
+    /**
+     * Whether to index the sections of the list, where a section is a run of items which have the same bubble text.
+     * False by default.
+     * <p/>
+     * The index is built by reading the text of every item once, the first time it's needed, and then kept up to date
+     * by reading the text of just the items which the adapter says have changed. After that, no text needs to be read
+     * while the handle is being dragged.
+     * @param useSectionIndex Whether or not to use the section index.
+     */
+    void setUseSectionIndex(boolean useSectionIndex) {
+        this.useSectionIndex = useSectionIndex;
+        invalidateBubbleText();
     }
 
     /**
@@ -171,6 +435,20 @@ class FastScroller extends LinearLayout {
         this.handleStateListener = handleStateListener;
     }
 
+    boolean getUseMeasuredHeights() {
+        return useMeasuredHeights;
+    }
+
+    /**
+     * Whether to keep track of the measured heights of rows, and use them (rather than the recycler view's estimates)
+     * to map between the handle's position and the recycler view's position. False by default.
+     * @param useMeasuredHeights Whether or not to use measured row heights.
+     */
+    void setUseMeasuredHeights(boolean useMeasuredHeights) {
+        this.useMeasuredHeights = useMeasuredHeights;
+        resetRowHeights();
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
@@ -180,8 +458,11 @@ class FastScroller extends LinearLayout {
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        removeCallbacks(applyPendingDrag);
+        dragPending = false;
         if (recyclerView != null) {
             recyclerView.removeOnScrollListener(onScrollListener);
+            recyclerView.removeOnLayoutChangeListener(onLayoutChangeListener);
             recyclerView = null;
         }
     }
@@ -199,21 +480,39 @@ class FastScroller extends LinearLayout {
                 // Select the handle.
                 handle.setSelected(true);
                 notifyHandleListener(FastScrollerHandleState.PRESSED);
+                setScrubbing(true);
+                // Start tracking the drag from scratch.
+                positionsPerMs = 0f;
+                lastTargetPos = -1;
+                prefetchedPos = -1;
+                warmedViewHolders = 0;
+                fullViewTypes.clear();
             case MotionEvent.ACTION_MOVE:
                 // If the handle isn't visible, ignore this.
                 if (handle.getVisibility() != VISIBLE) return false;
                 // If we have auto-hide turned on, make sure the handle is shown.
                 if (autoHideHandle) showHandle();
-                // Set the positions of the bubble (unless we aren't using it), the handle, and the recyclerview.
-                float y = event.getY();
-                setBubbleAndHandlePosition(y);
-                setRecyclerViewPosition(y);
+                // Set the positions of the bubble (unless we aren't using it), the handle, and the recyclerview. We do
+                // that right away for the first touch, but moves are applied on the next frame.
+                pendingDragY = event.getY();
+                if (action == MotionEvent.ACTION_DOWN) {
+                    applyPendingDrag.run();
+                } else if (!dragPending) {
+                    dragPending = true;
+                    ViewCompat.postOnAnimation(this, applyPendingDrag);
+                }
                 return true;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
+                // Make sure that we end up where the touch did.
+                if (dragPending) {
+                    removeCallbacks(applyPendingDrag);
+                    applyPendingDrag.run();
+                }
                 // Un-select the handle.
                 handle.setSelected(false);
                 notifyHandleListener(FastScrollerHandleState.RELEASED);
+                setScrubbing(false);
                 // Hide the bubble (if we're using it).
                 hideBubble();
                 // If we have auto-hide turned on, make sure we hide the handle (after a delay).
@@ -226,24 +525,141 @@ class FastScroller extends LinearLayout {
     private void setRecyclerViewPosition(float y) {
         if (recyclerView != null) {
             int itemCount = recyclerView.getAdapter().getItemCount();
+            if (itemCount == 0) return;
             float rawTargetItemProportion;
 
             if (handle.getY() == 0) rawTargetItemProportion = 0f;
             else if (handle.getY() + handle.getHeight() > height) rawTargetItemProportion = 1f;
             else rawTargetItemProportion = y / ((float) height - (float) handle.getHeight());
 
-            float targetItemProportion = rawTargetItemProportion * computeMaxScrollProportion(
-                    recyclerView.computeVerticalScrollRange(), recyclerView.computeVerticalScrollExtent());
+            // Work in rows rather than items, so that grids scroll to the start of a row. Staggered grids don't have
+            // rows, so there each item counts as one.
+            RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+            int spanCount = LayoutManagers.getItemsPerRow(layoutManager);
+            int rowCount = (itemCount + spanCount - 1) / spanCount;
+            int targetRow, targetOffset = 0;
+            if (hasRowHeights()) {
+                // Find the row at the target scroll offset, and how far into it we need to be.
+                long targetScroll = (long) (rawTargetItemProportion * Math.max(0L, computeMeasuredScrollRange()
+                        - recyclerView.getHeight()));
+                targetRow = rowHeights.findPosition(targetScroll);
+                targetOffset = (int) (rowHeights.getOffsetOf(targetRow) - targetScroll);
+            } else {
+                float targetItemProportion = rawTargetItemProportion * computeMaxScrollProportion(getScrollRange(),
+                        getScrollExtent());
+
+                targetRow = (int) getValueInRange(0, rowCount - 1, targetItemProportion * (float) rowCount);
+            }
+            int targetPos = Math.max(0, Math.min(targetRow * spanCount, itemCount - 1));
+            LayoutManagers.scrollToPositionWithOffset(layoutManager, targetPos, targetOffset);
 
-            int targetPos = (int) getValueInRange(0, itemCount - 1, targetItemProportion * (float) itemCount);
-            ((LinearLayoutManager) recyclerView.getLayoutManager()).scrollToPositionWithOffset(targetPos, 0);
+            schedulePrefetch(targetPos, itemCount);
 
             if (useBubble) {
                 if (bubbleTextProvider == null)
                     throw new IllegalStateException("You haven't set a BubbleTextProvider.");
-                bubble.setText(bubbleTextProvider.getFastScrollBubbleText(targetPos));
+                String text = getBubbleText(targetPos, itemCount);
+                // Setting the text causes a layout pass, even if the text hasn't changed.
+                if (!TextUtils.equals(bubble.getText(), text)) bubble.setText(text);
+            }
+        }
+    }
+
+    /**
+     * Tell the adapter (if it's a {@link RealmRecyclerViewAdapter}) whether the list is moving too fast for rows to be
+     * seen properly.
+     * @param scrubbing Whether the list is being scrubbed through.
+     */
+    private void setScrubbing(boolean scrubbing) {
+        if (adapter instanceof RealmRecyclerViewAdapter)
+            ((RealmRecyclerViewAdapter<?, ?>) adapter).setScrubbing(scrubbing);
+    }
+
+    /**
+     * Put {@code holder} in {@code pool}, which quietly drops it if it already holds as many view holders of that type
+     * as it's allowed to. {@code RecycledViewPool} doesn't say how many it holds or how many it allows, so to find out
+     * whether {@code holder} was kept, this takes all view holders of its type back out and puts them back again.
+     * @return Whether {@code pool} kept {@code holder}.
+     */
+    private boolean putIfRoom(RecyclerView.RecycledViewPool pool, RecyclerView.ViewHolder holder) {
+        int viewType = holder.getItemViewType();
+        pool.putRecycledView(holder);
+        RecyclerView.ViewHolder taken;
+        while ((taken = pool.getRecycledView(viewType)) != null) poolScratch.add(taken);
+        boolean kept = poolScratch.contains(holder);
+        for (int i = 0; i < poolScratch.size(); i++) pool.putRecycledView(poolScratch.get(i));
+        poolScratch.clear();
+        return kept;
+    }
+
+    /**
+     * Update our estimate of the drag speed now that we've scrolled to {@code targetPos}, and have {@link #prefetcher}
+     * get ready for where the drag will be in {@link #PREFETCH_LOOKAHEAD_MS}.
+     * @param targetPos Position which we just scrolled to.
+     * @param itemCount Number of items in the adapter.
+     */
+    private void schedulePrefetch(int targetPos, int itemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (lastTargetPos != -1 && now > lastTargetTime) {
+            float speed = (targetPos - lastTargetPos) / (float) (now - lastTargetTime);
+            positionsPerMs = positionsPerMs * .5f + speed * .5f;
+        }
+        lastTargetPos = targetPos;
+        lastTargetTime = now;
+
+        prefetchPos = (int) getValueInRange(0, Math.max(0, itemCount - 1),
+                targetPos + positionsPerMs * PREFETCH_LOOKAHEAD_MS);
+        if (!prefetchScheduled) {
+            prefetchScheduled = true;
+            Looper.myQueue().addIdleHandler(prefetcher);
+        }
+    }
+
+    /**
+     * Get the bubble text for the item at {@code position}, from the section index if we're using one, or otherwise
+     * from the {@link #bubbleTextProvider} (unless we've asked it recently).
+     * @param position  Position of the item.
+     * @param itemCount Number of items in the adapter.
+     * @return Bubble text.
+     */
+    private String getBubbleText(int position, int itemCount) {
+        if (useSectionIndex) {
+            // If the index has got out of step with the adapter somehow, start over.
+            if (sectionIndexValid && sectionIndex.getItemCount() != itemCount) sectionIndexValid = false;
+            if (!sectionIndexValid) {
+                sectionIndex.rebuild(bubbleTextProvider, itemCount);
+                staleSections.clear();
+                sectionIndexValid = true;
+            }
+            for (int i = 0; i < staleSections.getRangeCount(); i++) {
+                int start = staleSections.getRangeStart(i);
+                sectionIndex.change(bubbleTextProvider, start, staleSections.getRangeEnd(i) - start);
             }
+            staleSections.clear();
+            return sectionIndex.getText(position);
+        }
+
+        int slot = position & (BUBBLE_TEXT_CACHE_SIZE - 1);
+        if (bubbleTextCachePositions[slot] == position) return bubbleTextCacheTexts[slot];
+        String text = bubbleTextProvider.getFastScrollBubbleText(position);
+        if (text != null) {
+            bubbleTextCachePositions[slot] = position;
+            bubbleTextCacheTexts[slot] = text;
         }
+        return text;
+    }
+
+    private void clearBubbleTextCache() {
+        Arrays.fill(bubbleTextCachePositions, -1);
+        Arrays.fill(bubbleTextCacheTexts, null);
+    }
+
+    /**
+     * Forget all bubble text, because the adapter's data or the bubble text provider has changed.
+     */
+    private void invalidateBubbleText() {
+        clearBubbleTextCache();
+        sectionIndexValid = false;
     }
 
     private void setBubbleAndHandlePosition(float y) {
@@ -273,6 +689,112 @@ class FastScroller extends LinearLayout {
         return Math.min(minimum, max);
     }
 
+    /**
+     * Computes how far the recycler view is scrolled, from 0 (at the top) to 1 (at the bottom), using the measured row
+     * heights if we have them.
+     * @return Scroll proportion, relative to the maximum scroll offset.
+     */
+    private float computeScrollProportion() {
+        if (hasRowHeights()) {
+            View first = null;
+            int firstPos = RecyclerView.NO_POSITION;
+            for (int i = 0; i < recyclerView.getChildCount(); i++) {
+                View child = recyclerView.getChildAt(i);
+                int pos = recyclerView.getChildAdapterPosition(child);
+                if (pos != RecyclerView.NO_POSITION && (firstPos == RecyclerView.NO_POSITION || pos < firstPos)) {
+                    first = child;
+                    firstPos = pos;
+                }
+            }
+            if (first != null) {
+                RecyclerView.LayoutManager lm = recyclerView.getLayoutManager();
+                long scrollOffset = rowHeights.getOffsetOf(firstPos / rowHeightsSpanCount)
+                        + recyclerView.getPaddingTop()
+                        - (lm.getDecoratedTop(first) - ((RecyclerView.LayoutParams) first.getLayoutParams()).topMargin);
+                long maxScrollOffset = computeMeasuredScrollRange() - recyclerView.getHeight();
+                return maxScrollOffset <= 0 ? 0f : getValueInRange(0f, 1f, (float) scrollOffset / maxScrollOffset);
+            }
+        }
+        return computeScrollProportionRelativeToMax(recyclerView.computeVerticalScrollOffset(), getScrollRange(),
+                getScrollExtent());
+    }
+
+    private int getScrollRange() {
+        if (scrollRange == -1) scrollRange = recyclerView.computeVerticalScrollRange();
+        return scrollRange;
+    }
+
+    private int getScrollExtent() {
+        if (scrollExtent == -1) scrollExtent = recyclerView.computeVerticalScrollExtent();
+        return scrollExtent;
+    }
+
+    private void invalidateScrollMetrics() {
+        scrollRange = -1;
+        scrollExtent = -1;
+    }
+
+    /**
+     * @return Whether we're using measured row heights, and have enough of them to go on. Never true for layout
+     * managers which don't lay items out in rows.
+     */
+    private boolean hasRowHeights() {
+        return useMeasuredHeights && LayoutManagers.hasRows(recyclerView.getLayoutManager())
+                && rowHeights.hasMeasurements() && rowHeightsMatchLayout();
+    }
+
+    /**
+     * @return Whether {@link #rowHeights} has the right number of rows for the recycler view's adapter and layout
+     * manager.
+     */
+    private boolean rowHeightsMatchLayout() {
+        int spanCount = LayoutManagers.getItemsPerRow(recyclerView.getLayoutManager());
+        int itemCount = recyclerView.getAdapter() != null ? recyclerView.getAdapter().getItemCount() : 0;
+        return spanCount == rowHeightsSpanCount && rowHeights.getItemCount() == (itemCount + spanCount - 1) / spanCount;
+    }
+
+    /**
+     * Forget all row heights, and start over with the current adapter and layout manager.
+     */
+    private void resetRowHeights() {
+        rowHeightsSpanCount = recyclerView != null ? LayoutManagers.getItemsPerRow(recyclerView.getLayoutManager()) : 1;
+        int itemCount = useMeasuredHeights && adapter != null ? adapter.getItemCount() : 0;
+        rowHeights.reset((itemCount + rowHeightsSpanCount - 1) / rowHeightsSpanCount);
+    }
+
+    /**
+     * @return Total height of the rows plus the recycler view's vertical padding.
+     */
+    private long computeMeasuredScrollRange() {
+        return rowHeights.getTotalHeight() + recyclerView.getPaddingTop() + recyclerView.getPaddingBottom();
+    }
+
+    /**
+     * Record the heights of the rows which are currently laid out in {@link #rowHeights}.
+     */
+    private void recordRowHeights() {
+        RecyclerView.LayoutManager lm = recyclerView.getLayoutManager();
+        if (lm == null || !LayoutManagers.hasRows(lm)) return;
+        // The adapter or layout manager may have been swapped out since we last looked.
+        if (!rowHeightsMatchLayout()) resetRowHeights();
+
+        // In a grid, a row is as tall as its tallest item.
+        int row = -1, rowHeight = 0;
+        for (int i = 0; i < recyclerView.getChildCount(); i++) {
+            View child = recyclerView.getChildAt(i);
+            int pos = recyclerView.getChildAdapterPosition(child);
+            if (pos == RecyclerView.NO_POSITION) continue;
+            RecyclerView.LayoutParams lp = (RecyclerView.LayoutParams) child.getLayoutParams();
+            int height = lm.getDecoratedMeasuredHeight(child) + lp.topMargin + lp.bottomMargin;
+            if (pos / rowHeightsSpanCount != row) {
+                rowHeights.setHeight(row, rowHeight);
+                row = pos / rowHeightsSpanCount;
+                rowHeight = height;
+            } else rowHeight = Math.max(rowHeight, height);
+        }
+        rowHeights.setHeight(row, rowHeight);
+    }
+
     /**
      * Computes the maximum scroll offset necessary to show the last item in the recycler view by doing {@code
      * scrollRange - scrollExtent}.
@@ -308,195 +830,125 @@ class FastScroller extends LinearLayout {
     }
 
     /**
-     * Show the fast scroller handle. First we check to see if {@link #currentHandleHideAnimator} is running, and if it
-     * is we reverse that and cancel it. Then we check to see if {@link #autoHideHandle} is false, and if it is then we
-     * just make sure that the handle is visible. Lastly, we check to see if the handle is visible, and if it still
-     * isn't then we create and run {@link #currentHandleShowAnimator} (unless it's already running).
+     * Show the fast scroller handle. If {@link #autoHideHandle} is true, the handle fades in (or, if it's fading out,
+     * turns around), otherwise it's just made visible.
      */
     private void showHandle() {
-        // If we're currently animating a hide, reverse and cancel that, then set the handle to visible.
-        if (currentHandleHideAnimator != null) {
-            // Don't allow the listener to be notified when the reversed hide animation ends.
-            eatVisibilityUpdates = true;
-            currentHandleHideAnimator.reverse();
-            handle.setVisibility(VISIBLE);
-            eatVisibilityUpdates = false;
-        }
-
-        // At this point, if autoHideHandle is false, just make sure that the handle is visible and we're done.
-        if (!autoHideHandle) {
-            if (handle.getVisibility() != VISIBLE) {
-                handle.setVisibility(VISIBLE);
-                notifyHandleListener(FastScrollerHandleState.VISIBLE);
-            }
-            return;
-        }
-
-        // Otherwise, if the handle isn't visible currently, animate it showing.
-        if (handle.getVisibility() != VISIBLE && currentHandleShowAnimator == null) {
-            handle.setVisibility(VISIBLE);
-            currentHandleShowAnimator = ObjectAnimator.ofFloat(handle, "alpha", 0f, 1f)
-                                                      .setDuration(HANDLE_ANIMATION_DURATION);
-            currentHandleShowAnimator.addListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationCancel(Animator animation) {
-                    super.onAnimationCancel(animation);
-                    notifyHandleListener(FastScrollerHandleState.VISIBLE);
-                    currentHandleShowAnimator = null;
-                }
-
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    super.onAnimationEnd(animation);
-                    notifyHandleListener(FastScrollerHandleState.VISIBLE);
-                    currentHandleShowAnimator = null;
-                }
-            });
-            currentHandleShowAnimator.start();
-        }
+        if (autoHideHandle) handleFader.fadeIn();
+        else handleFader.jumpTo(true);
     }
 
     /**
-     * Hide the fast scroller handle. First we check to see if {@link #currentHandleShowAnimator} is running, and if
-     * both it is running and {@link #autoHideHandle} is false, then we reverse and cancel the show animation. Then we
-     * check to see if {@link #autoHideHandle} is false, and if it is then we just make sure that the handle isn't
-     * visible. Lastly, we check to see if the handle is visible, and if it is then we create and run {@link
-     * #currentHandleHideAnimator} (unless it's already running), which will animate its hiding after a delay.
+     * Hide the fast scroller handle. If {@link #autoHideHandle} is true, the handle fades out after {@link
+     * #autoHideDelay}, otherwise it's just made invisible.
      */
     private void hideHandle() {
-        // If we're currently animating a show and auto-hide isn't turned on, reverse and cancel that animation, then
-        // set the handle to be not visible.
-        if (currentHandleShowAnimator != null && !autoHideHandle) {
-            // Don't allow the listener to be notified when the reversed show animation ends.
-            eatVisibilityUpdates = true;
-            currentHandleShowAnimator.reverse();
-            eatVisibilityUpdates = false;
-            handle.setVisibility(INVISIBLE);
-        }
-
-        // At this point, if autoHideHandle is false, just make sure that the handle isn't visible and we're done.
-        if (!autoHideHandle) {
-            if (handle.getVisibility() == VISIBLE) {
-                handle.setVisibility(INVISIBLE);
-                notifyHandleListener(FastScrollerHandleState.HIDDEN);
-            }
-            return;
-        }
-
-        // Otherwise, if the handle is visible currently, animate it hiding after a delay.
-        if (handle.getVisibility() == VISIBLE && currentHandleHideAnimator == null) {
-            currentHandleHideAnimator = ObjectAnimator.ofFloat(handle, "alpha", 1f, 0f)
-                                                      .setDuration(HANDLE_ANIMATION_DURATION);
-            // Make sure the delay also includes the remaining show animation time if it's running.
-            currentHandleHideAnimator.setStartDelay(autoHideDelay + (currentHandleShowAnimator == null ? 0
-                    : (HANDLE_ANIMATION_DURATION - currentHandleShowAnimator.getCurrentPlayTime())));
-            currentHandleHideAnimator.addListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationCancel(Animator animation) {
-                    super.onAnimationCancel(animation);
-                    handle.setVisibility(INVISIBLE);
-                    notifyHandleListener(FastScrollerHandleState.HIDDEN);
-                    currentHandleHideAnimator = null;
-                }
-
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    super.onAnimationEnd(animation);
-                    handle.setVisibility(INVISIBLE);
-                    notifyHandleListener(FastScrollerHandleState.HIDDEN);
-                    currentHandleHideAnimator = null;
-                }
-            });
-            currentHandleHideAnimator.start();
-        }
+        if (autoHideHandle) handleFader.fadeOut(autoHideDelay);
+        else handleFader.jumpTo(false);
     }
 
     /**
-     * Show the fast scroller bubble, unless {@link #useBubble} is false. If {@link #currentBubbleHideAnimator} is
-     * running, just reverse that animation and ensure the bubble is shown. Otherwise, as long as the bubble isn't shown
-     * already, run the show animation.
+     * Show the fast scroller bubble, unless {@link #useBubble} is false.
      */
     private void showBubble() {
-        // If we're not using the bubble, ignore this.
-        if (!useBubble) return;
-
-        // If we're currently animating a hide, just reverse that and ensure the bubble is visible.
-        if (currentBubbleHideAnimator != null) {
-            currentHandleHideAnimator.reverse();
-            bubble.setVisibility(VISIBLE);
-        }
+        if (useBubble) bubbleFader.fadeIn();
+    }
 
-        // If the bubble ins't visible at this point, animate a show.
-        if (bubble.getVisibility() != VISIBLE && currentBubbleShowAnimator == null) {
-            bubble.setVisibility(VISIBLE);
-            currentBubbleShowAnimator = ObjectAnimator.ofFloat(bubble, "alpha", 0f, 1f)
-                                                      .setDuration(BUBBLE_ANIMATION_DURATION);
-            currentBubbleShowAnimator.addListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationCancel(Animator animation) {
-                    super.onAnimationCancel(animation);
-                    currentBubbleShowAnimator = null;
-                }
+    /**
+     * Hide the fast scroller bubble. If {@link #useBubble} is false, it's just made invisible.
+     */
+    private void hideBubble() {
+        if (useBubble) bubbleFader.fadeOut(0);
+        else bubbleFader.jumpTo(false);
+    }
 
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    super.onAnimationEnd(animation);
-                    currentBubbleShowAnimator = null;
-                }
-            });
-            currentBubbleShowAnimator.start();
-        }
+    /**
+     * Convenience method to notify the handle listener if certain conditions are met.
+     * @param state State to notify the handle listener of.
+     */
+    private void notifyHandleListener(FastScrollerHandleState state) {
+        if (handleStateListener != null) handleStateListener.onHandleStateChanged(state);
     }
 
     /**
-     * Hide the fast scroller bubble. First check to see if {@link #currentBubbleShowAnimator} is running, and if so
-     * then just reverse that animation and hide the bubble. Next check to see if {@link #useBubble} is false, and if so
-     * then just hide the bubble. Lastly, if the bubble is still visible, just run the hide animation.
+     * Fades a view in and out using a single animator, which is created up front and reversed to fade out (or to turn
+     * around part way through), so that showing and hiding the view doesn't allocate anything.
      */
-    private void hideBubble() {
-        // If we're currently animating a show, just reverse the animation and set the bubble to be not visible.
-        if (currentBubbleShowAnimator != null) {
-            currentBubbleShowAnimator.reverse();
-            bubble.setVisibility(INVISIBLE);
+    private final class Fader extends AnimatorListenerAdapter implements Runnable {
+        private final View view;
+        private final ObjectAnimator animator;
+        private final boolean isHandle;
+        /**
+         * Whether the view is shown or fading in, as opposed to hidden or fading out.
+         */
+        private boolean shown;
+        /**
+         * Whether the handle state listener was last told that the view is visible. Only used for the handle.
+         */
+        private boolean reportedShown;
+
+        Fader(View view, int duration, boolean isHandle) {
+            this.view = view;
+            this.isHandle = isHandle;
+            animator = ObjectAnimator.ofFloat(view, "alpha", 0f, 1f).setDuration(duration);
+            animator.addListener(this);
+            shown = view.getVisibility() == VISIBLE;
+            reportedShown = shown;
         }
 
-        // At this point, if we aren't using the bubble, just make sure it isn't visible and we're done.
-        if (!useBubble) {
-            bubble.setVisibility(INVISIBLE);
-            return;
+        void fadeIn() {
+            removeCallbacks(this);
+            if (shown) return;
+            shown = true;
+            view.setVisibility(VISIBLE);
+            if (animator.isRunning()) animator.reverse();
+            else animator.start();
         }
 
-        // Otherwise, if the bubble is visible currently, animate it hiding.
-        if (bubble.getVisibility() == VISIBLE && currentBubbleHideAnimator == null) {
-            currentBubbleHideAnimator = ObjectAnimator.ofFloat(bubble, "alpha", 1f, 0f)
-                                                      .setDuration(BUBBLE_ANIMATION_DURATION);
-            currentBubbleHideAnimator.addListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    super.onAnimationEnd(animation);
-                    bubble.setVisibility(INVISIBLE);
-                    currentBubbleHideAnimator = null;
-                }
+        /**
+         * Fade the view out after {@code delay} milliseconds, unless {@link #fadeIn()} is called before then.
+         */
+        void fadeOut(long delay) {
+            removeCallbacks(this);
+            if (delay > 0) postDelayed(this, delay);
+            else run();
+        }
 
-                @Override
-                public void onAnimationCancel(Animator animation) {
-                    super.onAnimationCancel(animation);
-                    bubble.setVisibility(INVISIBLE);
-                    currentBubbleHideAnimator = null;
-                }
-            });
-            currentBubbleHideAnimator.start();
+        /**
+         * Start fading the view out. If it's still fading in, this turns that around.
+         */
+        @Override
+        public void run() {
+            if (!shown) return;
+            shown = false;
+            animator.reverse();
         }
-    }
 
-    /**
-     * Convenience method to notify the handle listener if certain conditions are met.
-     * @param state State to notify the handle listener of.
-     */
-    private void notifyHandleListener(FastScrollerHandleState state) {
-        // The event will be sent if we have a listener, and if it's either not a visibility event or we aren't eating
-        // the visibility events (and thus we don't care what it is).
-        if (handleStateListener != null && (!eatVisibilityUpdates || state == FastScrollerHandleState.PRESSED ||
-                state == FastScrollerHandleState.RELEASED)) handleStateListener.onHandleStateChanged(state);
+        /**
+         * Show or hide the view right away.
+         */
+        void jumpTo(boolean show) {
+            removeCallbacks(this);
+            shown = show;
+            animator.cancel();
+            view.setAlpha(show ? 1f : 0f);
+            settle();
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            settle();
+        }
+
+        /**
+         * Put the view in its final state for {@link #shown}, and let the handle state listener know if that changed.
+         */
+        private void settle() {
+            view.setVisibility(shown ? VISIBLE : INVISIBLE);
+            if (isHandle && shown != reportedShown) {
+                reportedShown = shown;
+                notifyHandleListener(shown ? FastScrollerHandleState.VISIBLE : FastScrollerHandleState.HIDDEN);
+            }
+        }
     }
 }
\ No newline at end of file
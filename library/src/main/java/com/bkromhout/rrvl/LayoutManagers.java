@@ -0,0 +1,120 @@
+package com.bkromhout.rrvl;
+
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.view.View;
+
+/**
+ * Helpers for the handful of things which {@link RealmRecyclerView}, {@link RealmRecyclerViewAdapter}, and {@link
+ * FastScroller} need from a layout manager, but which {@code RecyclerView.LayoutManager} doesn't provide itself.
+ * <p/>
+ * {@code LinearLayoutManager} (and so {@code GridLayoutManager}) and {@code StaggeredGridLayoutManager} are fully
+ * supported. For any other layout manager, we make do with what {@code RecyclerView.LayoutManager} has.
+ */
+final class LayoutManagers {
+    /**
+     * Reused for the positions which {@code StaggeredGridLayoutManager} reports for each span, so that finding the
+     * visible positions on every scroll doesn't allocate. Layout managers are only used on the UI thread, so one array
+     * is enough.
+     */
+    private static int[] spanPositions = new int[0];
+
+    private LayoutManagers() {
+    }
+
+    /**
+     * Get the number of items in each row, for layout managers which lay items out in rows.
+     * @param lm Layout manager.
+     * @return Span count for {@code GridLayoutManager}, otherwise 1.
+     * @see #hasRows(RecyclerView.LayoutManager)
+     */
+    static int getItemsPerRow(RecyclerView.LayoutManager lm) {
+        return lm instanceof GridLayoutManager ? ((GridLayoutManager) lm).getSpanCount() : 1;
+    }
+
+    /**
+     * Check whether an item's row can be worked out from its position. {@code StaggeredGridLayoutManager} puts each
+     * item in whichever span has room first, so its items don't line up in rows.
+     * @param lm Layout manager.
+     * @return True unless {@code lm} is a {@code StaggeredGridLayoutManager}.
+     */
+    static boolean hasRows(RecyclerView.LayoutManager lm) {
+        return !(lm instanceof StaggeredGridLayoutManager);
+    }
+
+    /**
+     * Get the position of the first item which is at least partially visible.
+     * @param lm Layout manager. May be null.
+     * @return Position, or {@code RecyclerView.NO_POSITION} if no items are laid out.
+     */
+    static int findFirstVisibleItemPosition(RecyclerView.LayoutManager lm) {
+        if (lm instanceof LinearLayoutManager) return ((LinearLayoutManager) lm).findFirstVisibleItemPosition();
+        if (lm instanceof StaggeredGridLayoutManager) {
+            int[] positions = ((StaggeredGridLayoutManager) lm).findFirstVisibleItemPositions(
+                    getSpanPositions((StaggeredGridLayoutManager) lm));
+            int first = RecyclerView.NO_POSITION;
+            for (int position : positions)
+                if (position != RecyclerView.NO_POSITION && (first == RecyclerView.NO_POSITION || position < first))
+                    first = position;
+            return first;
+        }
+        return findVisibleItemPosition(lm, true);
+    }
+
+    /**
+     * Get the position of the last item which is at least partially visible.
+     * @param lm Layout manager. May be null.
+     * @return Position, or {@code RecyclerView.NO_POSITION} if no items are laid out.
+     */
+    static int findLastVisibleItemPosition(RecyclerView.LayoutManager lm) {
+        if (lm instanceof LinearLayoutManager) return ((LinearLayoutManager) lm).findLastVisibleItemPosition();
+        if (lm instanceof StaggeredGridLayoutManager) {
+            int last = RecyclerView.NO_POSITION;
+            int[] positions = ((StaggeredGridLayoutManager) lm).findLastVisibleItemPositions(
+                    getSpanPositions((StaggeredGridLayoutManager) lm));
+            for (int position : positions) last = Math.max(last, position);
+            return last;
+        }
+        return findVisibleItemPosition(lm, false);
+    }
+
+    /**
+     * Scroll so that the item at {@code position} is {@code offset} pixels below the top padding.
+     * @param lm       Layout manager.
+     * @param position Position to scroll to.
+     * @param offset   Distance between the top padding and the top of the item. Layout managers which don't support
+     *                 offsets just scroll the item into view.
+     */
+    static void scrollToPositionWithOffset(RecyclerView.LayoutManager lm, int position, int offset) {
+        if (lm instanceof LinearLayoutManager) ((LinearLayoutManager) lm).scrollToPositionWithOffset(position, offset);
+        else if (lm instanceof StaggeredGridLayoutManager)
+            ((StaggeredGridLayoutManager) lm).scrollToPositionWithOffset(position, offset);
+        else lm.scrollToPosition(position);
+    }
+
+    /**
+     * @return {@link #spanPositions}, reallocated first if the span count of {@code lm} has changed.
+     */
+    private static int[] getSpanPositions(StaggeredGridLayoutManager lm) {
+        if (spanPositions.length != lm.getSpanCount()) spanPositions = new int[lm.getSpanCount()];
+        return spanPositions;
+    }
+
+    /**
+     * Find the first or last laid out item which is at least partially within the layout manager's padding.
+     */
+    private static int findVisibleItemPosition(RecyclerView.LayoutManager lm, boolean first) {
+        if (lm == null) return RecyclerView.NO_POSITION;
+        int found = RecyclerView.NO_POSITION;
+        int top = lm.getPaddingTop(), bottom = lm.getHeight() - lm.getPaddingBottom();
+        for (int i = 0; i < lm.getChildCount(); i++) {
+            View child = lm.getChildAt(i);
+            if (lm.getDecoratedBottom(child) <= top || lm.getDecoratedTop(child) >= bottom) continue;
+            int position = lm.getPosition(child);
+            if (found == RecyclerView.NO_POSITION || (first ? position < found : position > found)) found = position;
+        }
+        return found;
+    }
+}
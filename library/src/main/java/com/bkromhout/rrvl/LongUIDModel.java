@@ -0,0 +1,19 @@
+package com.bkromhout.rrvl;
+
+/**
+ * Realm model classes whose UID is a {@code long} (such as a {@code long} primary key field) can implement this
+ * instead of just {@link UIDModel} so that a {@link RealmRecyclerViewAdapter} can keep track of their UIDs without
+ * boxing them.
+ * <p/>
+ * This matters for large lists, since the adapter needs to read the UID of every item each time the {@code
+ * RealmResults} change.
+ */
+public interface LongUIDModel extends UIDModel {
+    /**
+     * Return a {@code long} which uniquely identifies this model object instance in relation to others of its type. The
+     * same rules apply as for {@link UIDModel#getUID()}, and {@link UIDModel#getUID()} should return the boxed version
+     * of the same value.
+     * @return Value which uniquely identifies an instance of this model object.
+     */
+    long getLongUID();
+}
@@ -0,0 +1,378 @@
+package com.bkromhout.rrvl;
+
+import java.util.Arrays;
+
+/**
+ * The set of selected positions in a {@link RealmRecyclerViewAdapter}.
+ * <p/>
+ * Positions are stored as a sorted list of ranges in primitive arrays rather than one by one, so selecting everything
+ * or a long run of items takes a single range no matter how many items there are, and checking whether a position is
+ * selected is a binary search which doesn't allocate anything.
+ * <p/>
+ * Only the adapter can change the selection, since it needs to notify the {@code RecyclerView} when it does.
+ */
+public final class PositionSelection {
+    /**
+     * Ranges are {@code [starts[i], ends[i])}. They're sorted, and never overlap or touch (touching ranges are merged).
+     */
+    private int[] starts = new int[4];
+    private int[] ends = new int[4];
+    private int rangeCount = 0;
+    private int size = 0;
+
+    /**
+     * Scratch space for {@link #apply(UpdateBatch, PositionSelection)}: selected positions as pieces which are
+     * contiguous both before and after the notifications applied so far, along with where each piece started before
+     * them. Pieces are sorted, but touching pieces aren't merged. Only allocated once it's needed.
+     */
+    private int[] pieceStarts = null;
+    private int[] pieceEnds = null;
+    private int[] pieceOrigins = null;
+    private int pieceCount = 0;
+
+    PositionSelection() {
+    }
+
+    /**
+     * Check whether {@code position} is selected.
+     * @param position Position to check.
+     * @return True if the position is selected, otherwise false.
+     */
+    public boolean contains(int position) {
+        int i = lastRangeStartingAtOrBefore(position);
+        return i != -1 && position < ends[i];
+    }
+
+    /**
+     * Get the number of selected positions.
+     * @return Number of selected positions.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the number of runs of consecutive selected positions.
+     * @return Number of ranges.
+     */
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * Get the first position in a range of selected positions.
+     * @param index Index of the range, from 0 to {@link #getRangeCount()} - 1. Ranges are in order of position.
+     * @return First position in the range.
+     */
+    public int getRangeStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Get the position just after the end of a range of selected positions.
+     * @param index Index of the range, from 0 to {@link #getRangeCount()} - 1. Ranges are in order of position.
+     * @return Position after the last position in the range.
+     */
+    public int getRangeEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Select the positions from {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    void add(int from, int to) {
+        if (from >= to) return;
+        // Ranges lo to hi overlap or touch the new one, so they all get merged into it.
+        int lo = firstRangeEndingAtOrAfter(from), hi = lastRangeStartingAtOrBefore(to);
+        if (lo > hi) {
+            replace(lo, lo - 1, from, to, 0, 0);
+            size += to - from;
+            return;
+        }
+        int start = Math.min(from, starts[lo]), end = Math.max(to, ends[hi]);
+        for (int i = lo; i <= hi; i++) size -= ends[i] - starts[i];
+        size += end - start;
+        replace(lo, hi, start, end, 0, 0);
+    }
+
+    /**
+     * De-select the positions from {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    void remove(int from, int to) {
+        if (from >= to) return;
+        // Ranges lo to hi overlap the removed one.
+        int lo = firstRangeEndingAtOrAfter(from + 1), hi = lastRangeStartingAtOrBefore(to - 1);
+        if (lo > hi) return;
+        int leftStart = starts[lo], rightEnd = ends[hi];
+        for (int i = lo; i <= hi; i++) size -= Math.min(ends[i], to) - Math.max(starts[i], from);
+
+        // Whatever is left of the first and last ranges outside of the removed one stays.
+        if (leftStart < from && rightEnd > to) replace(lo, hi, leftStart, from, to, rightEnd);
+        else if (leftStart < from) replace(lo, hi, leftStart, from, 0, 0);
+        else if (rightEnd > to) replace(lo, hi, to, rightEnd, 0, 0);
+        else replace(lo, hi, 0, 0, 0, 0);
+    }
+
+    /**
+     * Same as {@link #add(int, int)}, but also adds the positions which weren't already selected to {@code added}.
+     */
+    void add(int from, int to, PositionSelection added) {
+        // Record the gaps between the ranges which overlap the new one.
+        int cursor = from;
+        for (int i = firstRangeEndingAtOrAfter(from + 1); i < rangeCount && starts[i] < to; i++) {
+            added.add(cursor, starts[i]);
+            cursor = Math.max(cursor, ends[i]);
+        }
+        added.add(cursor, to);
+        add(from, to);
+    }
+
+    /**
+     * Same as {@link #remove(int, int)}, but also adds the positions which were selected to {@code removed}.
+     */
+    void remove(int from, int to, PositionSelection removed) {
+        for (int i = firstRangeEndingAtOrAfter(from + 1); i < rangeCount && starts[i] < to; i++)
+            removed.add(Math.max(starts[i], from), Math.min(ends[i], to));
+        remove(from, to);
+    }
+
+    /**
+     * Select all of the positions which are selected in {@code other}.
+     */
+    void addAll(PositionSelection other) {
+        for (int i = 0; i < other.rangeCount; i++) add(other.starts[i], other.ends[i]);
+    }
+
+    /**
+     * Get the selection as pairs of range starts and ends, which is compact enough to save to a {@code Bundle} no
+     * matter how many positions are selected.
+     * @return {@code [start0, end0, start1, end1, ...]}.
+     */
+    int[] toRangeArray() {
+        int[] ranges = new int[rangeCount * 2];
+        for (int i = 0; i < rangeCount; i++) {
+            ranges[i * 2] = starts[i];
+            ranges[i * 2 + 1] = ends[i];
+        }
+        return ranges;
+    }
+
+    /**
+     * Select the ranges in an array returned by {@link #toRangeArray()}.
+     */
+    void addRangeArray(int[] ranges) {
+        for (int i = 0; i + 1 < ranges.length; i += 2) add(ranges[i], ranges[i + 1]);
+    }
+
+    void clear() {
+        rangeCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Update the selection so that it still refers to the same items after the notifications in {@code batch}. Items
+     * which are removed are de-selected, and inserted items aren't selected.
+     * @param batch   Batch of notifications which is being sent to the {@code RecyclerView}.
+     * @param removed Selection to add the positions (from before {@code batch}) of selected items which are removed to.
+     * @return True if any selected item was removed or ended up at a different position.
+     */
+    boolean apply(UpdateBatch batch, PositionSelection removed) {
+        if (rangeCount == 0) return false;
+        if (pieceStarts == null || pieceStarts.length < rangeCount + 2) {
+            pieceStarts = new int[starts.length + 2];
+            pieceEnds = new int[pieceStarts.length];
+            pieceOrigins = new int[pieceStarts.length];
+        }
+        System.arraycopy(starts, 0, pieceStarts, 0, rangeCount);
+        System.arraycopy(ends, 0, pieceEnds, 0, rangeCount);
+        System.arraycopy(starts, 0, pieceOrigins, 0, rangeCount);
+        pieceCount = rangeCount;
+
+        boolean anyRemoved = false;
+        for (int i = 0; i < batch.size() && pieceCount > 0; i++) {
+            int first = batch.getFirst(i), second = batch.getSecond(i);
+            switch (batch.getType(i)) {
+                case UpdateBatch.INSERT:
+                    shiftPieces(splitPieces(first), second);
+                    break;
+                case UpdateBatch.REMOVE: {
+                    int lo = splitPieces(first), hi = splitPieces(first + second);
+                    for (int p = lo; p < hi; p++)
+                        removed.add(pieceOrigins[p], pieceOrigins[p] + pieceEnds[p] - pieceStarts[p]);
+                    anyRemoved |= hi > lo;
+                    removePieces(lo, hi);
+                    shiftPieces(lo, -second);
+                    break;
+                }
+                case UpdateBatch.MOVE: {
+                    int lo = splitPieces(first), hi = splitPieces(first + 1);
+                    int origin = hi > lo ? pieceOrigins[lo] : -1;
+                    removePieces(lo, hi);
+                    shiftPieces(lo, -1);
+                    int at = splitPieces(second);
+                    shiftPieces(at, 1);
+                    if (origin != -1) insertPiece(at, second, origin);
+                    break;
+                }
+            }
+        }
+
+        // Rebuild the ranges from the pieces, which merges any which now touch.
+        boolean shifted = false;
+        clear();
+        for (int p = 0; p < pieceCount; p++) {
+            shifted |= pieceStarts[p] != pieceOrigins[p];
+            add(pieceStarts[p], pieceEnds[p]);
+        }
+        return anyRemoved || shifted;
+    }
+
+    /**
+     * Make sure that no piece spans {@code position}, by splitting the piece which does (if any) in two.
+     * @return Index of the first piece which starts at or after {@code position}.
+     */
+    private int splitPieces(int position) {
+        int lo = 0, hi = pieceCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pieceStarts[mid] < position) lo = mid + 1;
+            else hi = mid;
+        }
+        if (lo > 0 && pieceEnds[lo - 1] > position) {
+            int end = pieceEnds[lo - 1];
+            pieceEnds[lo - 1] = position;
+            insertPiece(lo, position, pieceOrigins[lo - 1] + position - pieceStarts[lo - 1]);
+            pieceEnds[lo] = end;
+        }
+        return lo;
+    }
+
+    /**
+     * Shift the pieces from index {@code from} onwards by {@code delta} positions.
+     */
+    private void shiftPieces(int from, int delta) {
+        for (int p = from; p < pieceCount; p++) {
+            pieceStarts[p] += delta;
+            pieceEnds[p] += delta;
+        }
+    }
+
+    /**
+     * Insert a piece covering just {@code start} at index {@code index}, shifting the pieces after it along.
+     */
+    private void insertPiece(int index, int start, int origin) {
+        if (pieceCount == pieceStarts.length) {
+            pieceStarts = Arrays.copyOf(pieceStarts, pieceCount * 2);
+            pieceEnds = Arrays.copyOf(pieceEnds, pieceCount * 2);
+            pieceOrigins = Arrays.copyOf(pieceOrigins, pieceCount * 2);
+        }
+        System.arraycopy(pieceStarts, index, pieceStarts, index + 1, pieceCount - index);
+        System.arraycopy(pieceEnds, index, pieceEnds, index + 1, pieceCount - index);
+        System.arraycopy(pieceOrigins, index, pieceOrigins, index + 1, pieceCount - index);
+        pieceStarts[index] = start;
+        pieceEnds[index] = start + 1;
+        pieceOrigins[index] = origin;
+        pieceCount++;
+    }
+
+    /**
+     * Remove the pieces from index {@code lo} (inclusive) to {@code hi} (exclusive).
+     */
+    private void removePieces(int lo, int hi) {
+        System.arraycopy(pieceStarts, hi, pieceStarts, lo, pieceCount - hi);
+        System.arraycopy(pieceEnds, hi, pieceEnds, lo, pieceCount - hi);
+        System.arraycopy(pieceOrigins, hi, pieceOrigins, lo, pieceCount - hi);
+        pieceCount -= hi - lo;
+    }
+
+    /**
+     * Shift the selection to make room for {@code count} unselected items inserted at {@code position}.
+     * @return True if any selected positions were shifted.
+     */
+    boolean shiftForInsert(int position, int count) {
+        int i = lastRangeStartingAtOrBefore(position - 1);
+        // Split a range which the insertion lands in the middle of.
+        if (i != -1 && ends[i] > position) {
+            int end = ends[i];
+            ends[i] = position;
+            replace(i + 1, i, position, end, 0, 0);
+        }
+        for (int j = i + 1; j < rangeCount; j++) {
+            starts[j] += count;
+            ends[j] += count;
+        }
+        return i + 1 < rangeCount;
+    }
+
+    /**
+     * Remove {@code count} items starting at {@code position} from the selection, shifting the items after them.
+     */
+    void shiftForRemove(int position, int count) {
+        remove(position, position + count);
+        int i = firstRangeEndingAtOrAfter(position + 1);
+        for (int j = i; j < rangeCount; j++) {
+            starts[j] -= count;
+            ends[j] -= count;
+        }
+        // The ranges on either side of the removed items may now touch.
+        if (i > 0 && i < rangeCount && ends[i - 1] == starts[i]) replace(i - 1, i, starts[i - 1], ends[i], 0, 0);
+    }
+
+    /**
+     * Replace ranges {@code lo} to {@code hi} (which may be empty, if {@code hi == lo - 1}) with up to two new ranges.
+     * Empty new ranges are skipped.
+     */
+    private void replace(int lo, int hi, int start1, int end1, int start2, int end2) {
+        int newCount = (start1 < end1 ? 1 : 0) + (start2 < end2 ? 1 : 0);
+        int shift = newCount - (hi - lo + 1);
+        if (shift != 0) {
+            if (rangeCount + shift > starts.length) {
+                starts = Arrays.copyOf(starts, Math.max(starts.length * 2, rangeCount + shift));
+                ends = Arrays.copyOf(ends, starts.length);
+            }
+            System.arraycopy(starts, hi + 1, starts, hi + 1 + shift, rangeCount - hi - 1);
+            System.arraycopy(ends, hi + 1, ends, hi + 1 + shift, rangeCount - hi - 1);
+            rangeCount += shift;
+        }
+        int i = lo;
+        if (start1 < end1) {
+            starts[i] = start1;
+            ends[i++] = end1;
+        }
+        if (start2 < end2) {
+            starts[i] = start2;
+            ends[i] = end2;
+        }
+    }
+
+    /**
+     * @return Index of the last range which starts at or before {@code position}, or -1 if there isn't one.
+     */
+    private int lastRangeStartingAtOrBefore(int position) {
+        int lo = 0, hi = rangeCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= position) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * @return Index of the first range which ends at or after {@code position}, or {@link #rangeCount} if there isn't
+     * one.
+     */
+    private int firstRangeEndingAtOrAfter(int position) {
+        int lo = 0, hi = rangeCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < position) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
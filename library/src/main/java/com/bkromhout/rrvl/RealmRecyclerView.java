@@ -3,8 +3,10 @@ package com.bkromhout.rrvl;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.os.Build;
+import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
 import android.support.v7.widget.helper.ItemTouchHelper;
 import android.util.AttributeSet;
 import android.view.View;
@@ -62,6 +64,8 @@ public class RealmRecyclerView extends FrameLayout {
         initFastScroller(ta);
         // RecyclerView padding.
         initRVPadding(ta);
+        // Layout manager.
+        initLayoutManager(ta);
         ta.recycle();
 
         // Inflate empty view if present.
@@ -70,29 +74,49 @@ public class RealmRecyclerView extends FrameLayout {
             emptyContentContainer.inflate();
         }
 
-        // Set LinearLayoutManager, override the onLayoutChildren() method.
-        recyclerView.setLayoutManager(new LinearLayoutManager(getContext(), LinearLayoutManager.VERTICAL, false) {
+        // Keep the fast scroller's visibility up to date no matter which layout manager is used. The RecyclerView
+        // dispatches a scroll event after any layout which changes which items are shown, too.
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
-                super.onLayoutChildren(recycler, state);
-                if (!fastScrollEnabled) return;
-
-                final int firstVisibleItemPosition = findFirstVisibleItemPosition();
-                if (firstVisibleItemPosition != 0) {
-                    // Hide the fast scroller if not initialized, or no items are shown.
-                    if (firstVisibleItemPosition == -1) fastScroller.setVisibility(View.GONE);
-                    return;
-                }
-                final int lastVisibleItemPosition = findLastVisibleItemPosition();
-                int itemsShown = lastVisibleItemPosition - firstVisibleItemPosition + 1;
-                // Hide fast scroller if all items are visible in the viewport currently.
-                fastScroller.setVisibility(adapter != null && adapter.getItemCount() > itemsShown
-                        ? View.VISIBLE : View.GONE);
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                updateFastScrollerVisibility();
+            }
+        });
+        recyclerView.addOnLayoutChangeListener(new OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom, int oldLeft, int oldTop,
+                                       int oldRight, int oldBottom) {
+                updateFastScrollerVisibility();
             }
         });
         recyclerView.setHasFixedSize(true);
     }
 
+    private void initLayoutManager(TypedArray ta) {
+        int spanCount = Math.max(1, ta.getInt(R.styleable.RealmRecyclerView_gridSpanCount, 1));
+        if (ta.getBoolean(R.styleable.RealmRecyclerView_staggeredGrid, false))
+            recyclerView.setLayoutManager(
+                    new StaggeredGridLayoutManager(spanCount, StaggeredGridLayoutManager.VERTICAL));
+        else if (spanCount > 1) recyclerView.setLayoutManager(new GridLayoutManager(getContext(), spanCount));
+        else recyclerView.setLayoutManager(new LinearLayoutManager(getContext(), LinearLayoutManager.VERTICAL, false));
+    }
+
+    private void updateFastScrollerVisibility() {
+        if (!fastScrollEnabled) return;
+
+        RecyclerView.LayoutManager lm = recyclerView.getLayoutManager();
+        final int firstVisibleItemPosition = LayoutManagers.findFirstVisibleItemPosition(lm);
+        if (firstVisibleItemPosition != 0) {
+            // Hide the fast scroller if not initialized, or no items are shown.
+            if (firstVisibleItemPosition == RecyclerView.NO_POSITION) fastScroller.setVisibility(View.GONE);
+            return;
+        }
+        final int lastVisibleItemPosition = LayoutManagers.findLastVisibleItemPosition(lm);
+        int itemsShown = lastVisibleItemPosition - firstVisibleItemPosition + 1;
+        // Hide fast scroller if all items are visible in the viewport currently.
+        fastScroller.setVisibility(adapter != null && adapter.getItemCount() > itemsShown ? View.VISIBLE : View.GONE);
+    }
+
     private void initTouchHelper(TypedArray ta) {
         swipe = ta.getBoolean(R.styleable.RealmRecyclerView_swipe, false);
         dragAndDrop = ta.getBoolean(R.styleable.RealmRecyclerView_dragAndDrop, false);
@@ -108,6 +132,9 @@ public class RealmRecyclerView extends FrameLayout {
         fastScroller.setAutoHideDelay(ta.getInt(R.styleable.RealmRecyclerView_handleAutoHideDelay,
                 FastScroller.DEFAULT_HANDLE_HIDE_DELAY));
         fastScroller.setUseBubble(ta.getBoolean(R.styleable.RealmRecyclerView_useFastScrollBubble, false));
+        fastScroller.setUseSectionIndex(ta.getBoolean(R.styleable.RealmRecyclerView_fastScrollBubbleSections, false));
+        fastScroller.setUseMeasuredHeights(
+                ta.getBoolean(R.styleable.RealmRecyclerView_fastScrollMeasuredHeights, false));
         fastScroller.setRecyclerView(recyclerView);
     }
 
@@ -140,6 +167,7 @@ public class RealmRecyclerView extends FrameLayout {
     public final void setAdapter(final RealmRecyclerViewAdapter adapter) {
         this.adapter = adapter;
         recyclerView.setAdapter(adapter);
+        fastScroller.setAdapter(adapter);
 
         touchHelperCallback.setListener(adapter);
 
@@ -312,6 +340,53 @@ public class RealmRecyclerView extends FrameLayout {
         fastScroller.setUseBubble(useBubble);
     }
 
+    /**
+     * Get whether the fast scroller's bubble text is looked up from an index of the list's sections.
+     * @return Whether the fast scroller is using a section index or not.
+     */
+    public final boolean getFastScrollBubbleSections() {
+        return fastScroller.getUseSectionIndex();
+    }
+
+    /**
+     * Set whether the fast scroller should look up its bubble text from an index of the list's sections, where a
+     * section is a run of consecutive items which have the same bubble text (such as all of the items starting with the
+     * same letter, in an alphabetical list).
+     * <p>
+     * The {@link BubbleTextProvider} is asked for the text of every item once, and after that only for the items which
+     * the adapter reports as inserted or changed, instead of for each position that the handle is dragged over. Only
+     * use this if the bubble text of an item doesn't depend on its position. Positions are the adapter's, so the
+     * provider should look items up using {@link RealmRecyclerViewAdapter#getItem(int)}.
+     * @param sections Whether to use a section index or not.
+     */
+    @SuppressWarnings("unused")
+    public final void setFastScrollBubbleSections(boolean sections) {
+        fastScroller.setUseSectionIndex(sections);
+    }
+
+    /**
+     * Get whether the fast scroller uses measured row heights to map between the handle and the list.
+     * @return Whether the fast scroller is using measured row heights or not.
+     */
+    public final boolean getFastScrollMeasuredHeights() {
+        return fastScroller.getUseMeasuredHeights();
+    }
+
+    /**
+     * Set whether the fast scroller should keep track of the heights of rows as they're laid out, and use them to map
+     * between the handle's position and the list's position.
+     * <p>
+     * By default, the fast scroller relies on the {@code RecyclerView}'s scroll range, which is only estimated from the
+     * rows on screen. If your rows have different heights, that estimate changes as you scroll, which makes the handle
+     * jump around. With this turned on, rows which haven't been laid out yet are assumed to be the average height of
+     * the ones which have, and positions are found by pixel offset rather than by proportion of items.
+     * @param measuredHeights Whether to use measured row heights or not.
+     */
+    @SuppressWarnings("unused")
+    public final void setFastScrollMeasuredHeights(boolean measuredHeights) {
+        fastScroller.setUseMeasuredHeights(measuredHeights);
+    }
+
     /**
      * Set the bubble text provider to use.
      * @param bubbleTextProvider Bubble text provider.
@@ -366,10 +441,38 @@ public class RealmRecyclerView extends FrameLayout {
 
     /**
      * Get the {@code LinearLayoutManager} attached to the {@link RealmRecyclerView}.
-     * @return {@code LinearLayoutManager}.
+     * @return {@code LinearLayoutManager} (or {@code GridLayoutManager}), or null if some other kind of layout manager
+     * is being used.
+     * @deprecated Returns null for {@code StaggeredGridLayoutManager} and custom layout managers. Use {@link
+     * #getRVLayoutManager()} instead.
      */
+    @Deprecated
     @SuppressWarnings("unused")
     public final LinearLayoutManager getLayoutManager() {
-        return (LinearLayoutManager) recyclerView.getLayoutManager();
+        RecyclerView.LayoutManager lm = recyclerView.getLayoutManager();
+        return lm instanceof LinearLayoutManager ? (LinearLayoutManager) lm : null;
+    }
+
+    /**
+     * Get the layout manager attached to the {@link RealmRecyclerView}, whatever kind it is.
+     * @return Layout manager.
+     */
+    @SuppressWarnings("unused")
+    public final RecyclerView.LayoutManager getRVLayoutManager() {
+        return recyclerView.getLayoutManager();
+    }
+
+    /**
+     * Set the layout manager to use instead of the one set up from the {@code gridSpanCount} and {@code staggeredGrid}
+     * attributes.
+     * <p>
+     * The fast scroller and selection support {@code LinearLayoutManager}, {@code GridLayoutManager}, and {@code
+     * StaggeredGridLayoutManager} fully, as long as they lay out vertically. For grids, every item is assumed to take
+     * up one span; for staggered grids, the fast scroller goes by the {@code RecyclerView}'s own scroll estimates.
+     * @param layoutManager Layout manager.
+     */
+    @SuppressWarnings("unused")
+    public final void setLayoutManager(RecyclerView.LayoutManager layoutManager) {
+        recyclerView.setLayoutManager(layoutManager);
     }
 }
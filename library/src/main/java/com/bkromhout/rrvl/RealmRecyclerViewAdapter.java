@@ -1,40 +1,161 @@
 package com.bkromhout.rrvl;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.CallSuper;
+import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
-import difflib.Delta;
-import difflib.DiffUtils;
-import difflib.Patch;
-import io.realm.RealmChangeListener;
+import android.view.View;
+import io.realm.OrderedCollectionChangeSet;
+import io.realm.OrderedRealmCollection;
+import io.realm.OrderedRealmCollectionChangeListener;
+import io.realm.Realm;
 import io.realm.RealmModel;
+import io.realm.RealmObject;
 import io.realm.RealmResults;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The base {@code RecyclerView.Adapter} that includes custom functionality to be used with {@link RealmRecyclerView}.
  */
 public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel, VH extends RecyclerView.ViewHolder>
         extends RecyclerView.Adapter<VH> implements RealmSimpleItemTouchHelperCallback.Listener {
+    /**
+     * Pass to {@link #setChangeCoalescingInterval(long)} to process each change as soon as Realm reports it.
+     */
+    public static final long COALESCE_OFF = -1L;
+    /**
+     * Pass to {@link #setChangeCoalescingInterval(long)} to process changes at most once per frame.
+     */
+    public static final long COALESCE_PER_FRAME = 0L;
+    /**
+     * Pass to {@link #setDiffBudget(long)} to let diffs take as long as they need.
+     */
+    public static final long NO_DIFF_BUDGET = 0L;
+    /**
+     * Payload passed along with change notifications for items whose content version (see {@link
+     * ContentVersionModel}) has changed. Check for it in {@code onBindViewHolder(holder, position, payloads)} to do a
+     * partial update instead of a full rebind.
+     */
+    public static final Object CONTENT_CHANGED_PAYLOAD = new Object();
+    /**
+     * Payload passed along with change notifications for items which were selected or de-selected. Check for it in
+     * {@code onBindViewHolder(holder, position, payloads)} to just update the item's selected state instead of doing a
+     * full rebind.
+     */
+    public static final Object SELECTION_CHANGED_PAYLOAD = new Object();
+    /**
+     * Payload passed along with change notifications for the items on screen when scrubbing ends (see {@link
+     * #isScrubbing()}). Items which get it were bound while scrubbing, so they need a full bind.
+     */
+    public static final Object SCRUBBING_ENDED_PAYLOAD = new Object();
+    /**
+     * Number of positions past each end of the visible items which are rebound when scrubbing ends, since the {@code
+     * RecyclerView} keeps a couple of views which have just gone off screen around without rebinding them.
+     */
+    private static final int SCRUBBING_REBIND_MARGIN = 2;
 
     private static final String SEL_POSITIONS_KEY = "rrvl-state-key-selected-positions";
-    private static final List<Long> EMPTY_LIST = new ArrayList<>(0);
+    private static final String SEL_RANGES_KEY = "rrvl-state-key-selected-ranges";
+    /**
+     * Single background thread shared by all adapters for calculating diffs when {@link #asyncDiffing} is on.
+     */
+    private static final ExecutorService DIFF_EXECUTOR =
+            Executors.newSingleThreadExecutor(daemonThreadFactory("rrvl-diff"));
+    /**
+     * Number of threads which work on a diff when {@link #parallelDiffing} is on, including the one doing the diff.
+     */
+    private static final int DIFF_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    /**
+     * Background threads shared by all adapters for helping with diffs when {@link #parallelDiffing} is on.
+     */
+    private static final ExecutorService PARALLEL_DIFF_EXECUTOR =
+            Executors.newFixedThreadPool(Math.max(1, DIFF_PARALLELISM - 1), daemonThreadFactory("rrvl-diff-helper"));
 
     private RealmRecyclerView rrv = null;
-    private RealmChangeListener<RealmResults<T>> changeListener;
+    private OrderedRealmCollectionChangeListener<RealmResults<T>> changeListener;
     private boolean shouldNotifyOfSingleItemMoves = true;
     private SelectionChangeListener selectionChangeListener;
+    private SelectionRangeListener selectionRangeListener;
+    /**
+     * Positions selected and de-selected by the current selection change, for {@link #selectionRangeListener}.
+     */
+    private final PositionSelection selectionAdded = new PositionSelection();
+    private final PositionSelection selectionRemoved = new PositionSelection();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean asyncDiffing = false;
+    private boolean parallelDiffing = false;
+    private DiffStrategy diffStrategy = DiffStrategy.adaptive();
+    private boolean insertsOnlyAtEdges = false;
+    private boolean scrubbingEnabled = false;
+    private boolean scrubbing = false;
+    /**
+     * Incremented each time {@link #realmResults} changes so that results of diffs which were started before the most
+     * recent change can be recognized and thrown away.
+     */
+    private int diffGeneration = 0;
+    private boolean diffInFlight = false;
+    private long coalescingInterval = COALESCE_OFF;
+    private boolean changePending = false;
+    /**
+     * Change set for the pending change, or null if there isn't one or if more than one change has come in since we
+     * last processed one (change sets can't be combined).
+     */
+    private OrderedCollectionChangeSet pendingChangeSet = null;
+    private long lastChangeProcessedAt = 0L;
+    private long diffBudgetMs = NO_DIFF_BUDGET;
+    private int diffCount = 0;
+    private int diffFallbackCount = 0;
+    private final Runnable processPendingChange = new Runnable() {
+        @Override
+        public void run() {
+            if (!changePending) return;
+            changePending = false;
+            OrderedCollectionChangeSet changeSet = pendingChangeSet;
+            pendingChangeSet = null;
+            lastChangeProcessedAt = SystemClock.uptimeMillis();
+            processChange(changeSet);
+        }
+    };
 
     protected LayoutInflater inflater;
     protected RealmResults<T> realmResults;
-    protected List ids;
-    protected HashSet<Integer> selectedPositions;
+    /**
+     * UIDs of the items which the {@code RecyclerView} currently knows about.
+     */
+    private UIDSnapshot ids;
+    /**
+     * The items which the {@code RecyclerView} currently knows about, in the same order as {@link #ids}. This is a
+     * snapshot of {@link #realmResults} if they can get ahead of {@link #ids}, otherwise it's {@link #realmResults}.
+     */
+    private OrderedRealmCollection<T> items;
+    /**
+     * When diffing synchronously, the diff, the batch, and the previous long UID snapshot are reused for each change.
+     */
+    private final UIDDiff diff = new UIDDiff();
+    private final UpdateBatch batch = new UpdateBatch();
+    private UIDSnapshot.LongUIDSnapshot spareLongIds = null;
+    /**
+     * Whether {@link #ids} has been handed to {@link #DIFF_EXECUTOR}, in which case its buffer must never be reused.
+     */
+    private boolean idsSharedWithWorker = false;
+    private PositionSelection selectedPositions;
     protected int lastSelectedPos = -1;
 
     public RealmRecyclerViewAdapter(Context context, RealmResults<T> realmResults) {
@@ -42,98 +163,453 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
         this.changeListener = getRealmChangeListener();
         this.inflater = LayoutInflater.from(context);
 
-        selectedPositions = new HashSet<>();
+        selectedPositions = new PositionSelection();
         updateRealmResults(realmResults);
     }
 
-    private List getIdsOfRealmResults() {
-        if (realmResults == null || realmResults.size() == 0) return EMPTY_LIST;
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Get the current items in {@link #realmResults}, to be swapped in along with their UIDs. If changes can be
+     * coalesced or diffed asynchronously, {@link #realmResults} may have moved on by the time the {@code RecyclerView}
+     * asks for an item, so we pin a snapshot of them. Otherwise, changes are always processed as soon as Realm reports
+     * them, so {@link #realmResults} itself never gets ahead.
+     * @return Items to pair with the UIDs read from them, or null if there are no results.
+     */
+    private OrderedRealmCollection<T> pinItems() {
+        if (realmResults == null) return null;
+        return asyncDiffing || coalescingInterval != COALESCE_OFF ? realmResults.createSnapshot() : realmResults;
+    }
+
+    private UIDSnapshot getIdsOf(OrderedRealmCollection<T> source) {
+        if (source == null || source.size() == 0) return UIDSnapshot.EMPTY;
+        int size = source.size();
+
+        T first = source.get(0);
+        boolean versioned = first instanceof ContentVersionModel;
+
+        // If the UIDs are longs, read them into a primitive snapshot, reusing the old one if it isn't being diffed.
+        if (first instanceof LongUIDModel) {
+            UIDSnapshot.LongUIDSnapshot longIds = spareLongIds != null && !asyncDiffing
+                    ? spareLongIds : new UIDSnapshot.LongUIDSnapshot();
+            spareLongIds = null;
+            longIds.reset(size);
+            if (versioned) longIds.trackVersions(size);
+            else longIds.dropVersions();
+            for (int i = 0; i < size; i++) {
+                T item = source.get(i);
+                longIds.add(((LongUIDModel) item).getLongUID());
+                if (versioned) longIds.setVersion(i, ((ContentVersionModel) item).getContentVersion());
+            }
+            return longIds;
+        }
 
         // Get/Update IDs.
-        List ids = new ArrayList(realmResults.size());
-        for (int i = 0; i < realmResults.size(); i++)
+        List ids = new ArrayList(size);
+        UIDSnapshot objectIds = new UIDSnapshot.ObjectUIDSnapshot(ids);
+        if (versioned) objectIds.trackVersions(size);
+        for (int i = 0; i < size; i++) {
+            T item = source.get(i);
             //noinspection unchecked
-            ids.add(realmResults.get(i).getUID());
+            ids.add(item.getUID());
+            if (versioned) objectIds.setVersion(i, ((ContentVersionModel) item).getContentVersion());
+        }
+        return objectIds;
+    }
 
-        return ids;
+    private OrderedRealmCollectionChangeListener<RealmResults<T>> getRealmChangeListener() {
+        return new OrderedRealmCollectionChangeListener<RealmResults<T>>() {
+            @Override
+            public void onChange(RealmResults<T> newResults, OrderedCollectionChangeSet changeSet) {
+                if (coalescingInterval == COALESCE_OFF) {
+                    processChange(changeSet);
+                } else if (changePending) {
+                    // We'll need a full diff to cover more than one change.
+                    pendingChangeSet = null;
+                } else {
+                    changePending = true;
+                    pendingChangeSet = changeSet;
+                    schedulePendingChange();
+                }
+            }
+        };
     }
 
-    private RealmChangeListener<RealmResults<T>> getRealmChangeListener() {
-        return new RealmChangeListener<RealmResults<T>>() {
+    /**
+     * Schedule {@link #processPendingChange} to run on the next frame, or once {@link #coalescingInterval} has passed
+     * since we last processed a change.
+     */
+    private void schedulePendingChange() {
+        if (coalescingInterval == COALESCE_PER_FRAME && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            long delay = lastChangeProcessedAt + coalescingInterval - SystemClock.uptimeMillis();
+            mainHandler.postDelayed(processPendingChange, Math.max(0L, delay));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
             @Override
-            public void onChange(RealmResults<T> newResults) {
-                clearSelections();
+            public void doFrame(long frameTimeNanos) {
+                processPendingChange.run();
+            }
+        });
+    }
 
-                if (ids != null && !ids.isEmpty()) {
-                    List newIds = getIdsOfRealmResults();
+    /**
+     * Process a change to {@link #realmResults}.
+     * @param changeSet Realm's change set for the change, or null to diff the UIDs.
+     */
+    private void processChange(OrderedCollectionChangeSet changeSet) {
+        if (!applyChangeSet(changeSet)) onRealmResultsChanged();
+    }
 
-                    // If the list is now empty, just notify the recyclerView of the change.
-                    if (newIds.isEmpty()) {
-                        ids = newIds;
-                        notifyDataSetChanged();
-                        return;
-                    }
+    /**
+     * Try to bring the {@code RecyclerView} up to date using the ranges in the {@code changeSet} which Realm gives us,
+     * which only costs as much as the size of the change. Our IDs are patched rather than re-read.
+     * <p/>
+     * This isn't possible if there's no change set, if our IDs don't match the state that the change set is relative to
+     * (because an asynchronous diff is in flight), or if the change set has both deletions and insertions (since Realm
+     * reports moves that way, and we need {@link UIDDiff} to find them).
+     * @param changeSet Realm's change set for the most recent change. May be null.
+     * @return True if the change set was applied, or false if the UIDs need to be diffed instead.
+     */
+    private boolean applyChangeSet(OrderedCollectionChangeSet changeSet) {
+        if (changeSet == null || diffInFlight || ids == null || ids.isEmpty()) return false;
+        OrderedCollectionChangeSet.Range[] deletions = changeSet.getDeletionRanges();
+        OrderedCollectionChangeSet.Range[] insertions = changeSet.getInsertionRanges();
+        if (deletions.length > 0 && insertions.length > 0) return false;
+
+        diffGeneration++;
+        if (idsSharedWithWorker) {
+            ids = ids.copy();
+            idsSharedWithWorker = false;
+        }
+        batch.clear();
+
+        // Deletion indices are relative to the old list, so go backwards. Insertion and change indices are relative to
+        // the new list, so go forwards.
+        for (int i = deletions.length - 1; i >= 0; i--) {
+            ids.remove(deletions[i].startIndex, deletions[i].length);
+            batch.addRemove(deletions[i].startIndex, deletions[i].length);
+        }
+        for (OrderedCollectionChangeSet.Range range : insertions) {
+            ids.openGap(range.startIndex, range.length);
+            for (int i = range.startIndex; i < range.startIndex + range.length; i++) ids.set(i, realmResults.get(i));
+            batch.addInsert(range.startIndex, range.length);
+        }
+        for (OrderedCollectionChangeSet.Range range : changeSet.getChangeRanges()) {
+            if (ids.hasVersions()) addContentChanges(range.startIndex, range.length);
+            else batch.addChange(range.startIndex, range.length);
+        }
+
+        // If the change set didn't add up, the RecyclerView would end up with the wrong item count and either crash or
+        // have to recover by relaying out everything, so start from scratch instead.
+        if (ids.size() != realmResults.size()) {
+            items = pinItems();
+            ids = getIdsOf(items);
+            dropSelection();
+            notifyDataSetChanged();
+            return true;
+        }
+        items = pinItems();
+        remapSelection(batch);
+        batch.dispatchTo(this);
+        return true;
+    }
+
+    /**
+     * Add content changes to {@link #batch} for the items in the given range whose content versions no longer match
+     * the ones in {@link #ids}, updating {@link #ids} as we go.
+     * @param start Position of the first item which Realm reported as changed.
+     * @param count Number of items which Realm reported as changed.
+     */
+    private void addContentChanges(int start, int count) {
+        int runStart = -1;
+        for (int i = start; i < start + count; i++) {
+            long version = ((ContentVersionModel) realmResults.get(i)).getContentVersion();
+            if (version != ids.getVersion(i)) {
+                ids.setVersion(i, version);
+                if (runStart == -1) runStart = i;
+            } else if (runStart != -1) {
+                batch.addContentChange(runStart, i - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart != -1) batch.addContentChange(runStart, start + count - runStart);
+    }
+
+    /**
+     * Bring the {@code RecyclerView} up to date with the current state of {@link #realmResults}, either right away or,
+     * if {@link #asyncDiffing} is on, once the diff has been calculated on {@link #DIFF_EXECUTOR}.
+     */
+    private void onRealmResultsChanged() {
+        // Anything still in flight is now out of date.
+        final int generation = ++diffGeneration;
+        diffInFlight = false;
+
+        if (ids == null || ids.isEmpty()) {
+            items = pinItems();
+            ids = getIdsOf(items);
+            idsSharedWithWorker = false;
+            dropSelection();
+            notifyDataSetChanged();
+            return;
+        }
+
+        if (insertsOnlyAtEdges && applyEdgeInsert()) return;
+
+        final UIDSnapshot oldIds = ids;
+        final OrderedRealmCollection<T> newItems = pinItems();
+        final UIDSnapshot newIds = getIdsOf(newItems);
 
-                    Patch patch = DiffUtils.diff(ids, newIds);
-                    //noinspection unchecked
-                    List<Delta> deltas = patch.getDeltas();
-                    ids = newIds;
-
-                    // If the notification was for a different object/table (we'll have no deltas), don't do anything.
-                    if (!deltas.isEmpty()) {
-                        /*
-                         * When we know we're currently swiping or dragging, we do a few more checks before calling the
-                         * notify methods, because in those cases the real RecyclerView handles many animations without
-                         * us needing to tell it what to do, and notifying it on top of that messes things up.
-                         * Specifically, we don't explicitly notify it of single item moves.
-                         */
-                        boolean singleItemMoved = deltas.size() == 2 && areDeltasFromMove(deltas.get(0), deltas.get(1));
-                        if (!singleItemMoved) {
-                            // Loop through deltas backwards and send notifications for them.
-                            for (int i = deltas.size() - 1; i >= 0; i--) {
-                                Delta d = deltas.get(i);
-                                if (d.getType() == Delta.TYPE.INSERT) {
-                                    notifyItemRangeInserted(d.getOriginal().getPosition(), d.getRevised().size());
-                                } else if (d.getType() == Delta.TYPE.DELETE) {
-                                    notifyItemRangeRemoved(d.getOriginal().getPosition(), d.getOriginal().size());
-                                } else {
-                                    notifyItemRangeChanged(d.getRevised().getPosition(), d.getRevised().size());
-                                }
-                            }
-                        } else if (shouldNotifyOfSingleItemMoves) {
-                            // Notify that a single item moved.
-                            Delta insert = deltas.get(0).getType() == Delta.TYPE.INSERT ? deltas.get(0) : deltas.get(1);
-                            Delta delete = deltas.get(0).getType() == Delta.TYPE.DELETE ? deltas.get(0) : deltas.get(1);
-                            notifyItemMoved(delete.getOriginal().getPosition(), insert.getRevised().getPosition());
-                            notifyItemChanged(insert.getRevised().getPosition());
-                        }
+        // If the list is now empty, just notify the recyclerView of the change.
+        if (newIds.isEmpty()) {
+            items = newItems;
+            ids = newIds;
+            idsSharedWithWorker = false;
+            dropSelection();
+            notifyDataSetChanged();
+            return;
+        }
+
+        diffCount++;
+        final long budgetMs = diffBudgetMs;
+        final boolean parallel = parallelDiffing;
+        final DiffStrategy strategy = diffStrategy;
+        if (!asyncDiffing) {
+            // Never make the main thread wait for other threads.
+            batch.clear();
+            setDiffExecutor(diff, false);
+            boolean finished = strategy.calculate(diff, oldIds, newIds, batch, getDiffDeadline(budgetMs));
+            applyDiff(finished, newIds, newItems, false, batch);
+            return;
+        }
+
+        // Diff on the worker thread, then hop back to the main thread to apply the result if nothing newer came in.
+        diffInFlight = true;
+        idsSharedWithWorker = true;
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final UpdateBatch asyncBatch = new UpdateBatch();
+                UIDDiff asyncDiff = new UIDDiff();
+                setDiffExecutor(asyncDiff, parallel);
+                final boolean finished = strategy.calculate(asyncDiff, oldIds, newIds, asyncBatch,
+                        getDiffDeadline(budgetMs));
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != diffGeneration) return;
+                        diffInFlight = false;
+                        applyDiff(finished, newIds, newItems, true, asyncBatch);
                     }
-                } else {
-                    notifyDataSetChanged();
-                    ids = getIdsOfRealmResults();
-                }
+                });
             }
-        };
+        });
+    }
+
+    /**
+     * If {@link #realmResults} looks like our IDs with items added to the start or the end, only read the new items'
+     * UIDs into {@link #ids} and notify the {@code RecyclerView} of a single insertion. Only the sizes and the UIDs at
+     * either end of the old items are checked, so this costs as much as the number of added items rather than the size
+     * of the list.
+     * @return True if the change was handled, or false if it didn't look like an insertion at the start or end.
+     */
+    private boolean applyEdgeInsert() {
+        int oldSize = ids.size(), count = realmResults.size() - oldSize;
+        if (count <= 0) return false;
+
+        Object firstUid = ids.getUID(0), lastUid = ids.getUID(oldSize - 1);
+        int start;
+        if (realmResults.get(0).getUID().equals(firstUid) && realmResults.get(oldSize - 1).getUID().equals(lastUid))
+            start = oldSize;
+        else if (realmResults.get(count).getUID().equals(firstUid)
+                && realmResults.get(count + oldSize - 1).getUID().equals(lastUid)) start = 0;
+        else return false;
+
+        if (idsSharedWithWorker) {
+            ids = ids.copy();
+            idsSharedWithWorker = false;
+        }
+        ids.openGap(start, count);
+        for (int i = start; i < start + count; i++) ids.set(i, realmResults.get(i));
+        items = pinItems();
+        if (lastSelectedPos >= start) lastSelectedPos += count;
+        if (selectedPositions.shiftForInsert(start, count) && selectionRangeListener != null) {
+            startSelectionChange();
+            selectionRangeListener.selectedPositionsShifted(selectionRemoved, selectedPositions);
+        }
+        notifyItemRangeInserted(start, count);
+        return true;
+    }
+
+    private static void setDiffExecutor(UIDDiff diff, boolean parallel) {
+        if (parallel) diff.setExecutor(PARALLEL_DIFF_EXECUTOR, DIFF_PARALLELISM);
+        else diff.setExecutor(null, 1);
+    }
+
+    private static long getDiffDeadline(long budgetMs) {
+        return budgetMs == NO_DIFF_BUDGET ? UIDDiff.NO_DEADLINE : System.nanoTime() + budgetMs * 1000000L;
     }
 
     /**
-     * Check {@code delta1} and {@code delta2} to determine if, together, they represent a situation where an item has
-     * simply moved to somewhere else in the list.
-     * @param delta1 A delta.
-     * @param delta2 Another delta.
-     * @return True if the deltas represent an item having moved, otherwise false.
+     * Apply the result of a diff, falling back to {@code notifyDataSetChanged()} if it ran over {@link #diffBudgetMs}.
+     * @param finished     Whether the diff finished within the budget.
+     * @param newIds       New IDs.
+     * @param newItems     Items which {@code newIds} were read from.
+     * @param newIdsShared Whether {@code newIds} was handed to {@link #DIFF_EXECUTOR}.
+     * @param batch        Notifications which bring the {@code RecyclerView} from the old IDs to {@code newIds}, if the
+     *                     diff finished.
      */
-    private boolean areDeltasFromMove(Delta delta1, Delta delta2) {
-        // Check delta types, make sure we have one insert and one delete.
-        if (!((delta1.getType() == Delta.TYPE.INSERT && delta2.getType() == Delta.TYPE.DELETE)
-                || (delta1.getType() == Delta.TYPE.DELETE && delta2.getType() == Delta.TYPE.INSERT))) return false;
-        // Figure out which is which.
-        Delta insert = delta1.getType() == Delta.TYPE.INSERT ? delta1 : delta2;
-        Delta delete = delta2.getType() == Delta.TYPE.DELETE ? delta2 : delta1;
-        // Make sure they only affect one "line".
-        if (delete.getOriginal().size() != 1 || insert.getRevised().size() != 1) return false;
-        // And make sure that that "line" has the same content.
-        return delete.getOriginal().getLines().get(0).equals(insert.getRevised().getLines().get(0));
+    private void applyDiff(boolean finished, UIDSnapshot newIds, OrderedRealmCollection<T> newItems,
+                           boolean newIdsShared, UpdateBatch batch) {
+        if (finished) {
+            applyUpdates(newIds, newItems, newIdsShared, batch);
+        } else {
+            // This is the only place where fallbacks are counted, so that they only reflect the diff budget.
+            diffFallbackCount++;
+            applyDataSetChanged(newIds, newItems, newIdsShared);
+        }
+    }
+
+    /**
+     * Swap in {@code newIds} as our current IDs, then send the notifications in {@code batch}.
+     * @param newIds       New IDs.
+     * @param newItems     Items which {@code newIds} were read from.
+     * @param newIdsShared Whether {@code newIds} was handed to {@link #DIFF_EXECUTOR}.
+     * @param batch        Notifications which bring the {@code RecyclerView} from the old IDs to {@code newIds}.
+     */
+    private void applyUpdates(UIDSnapshot newIds, OrderedRealmCollection<T> newItems, boolean newIdsShared,
+                              UpdateBatch batch) {
+        // The batch must take the RecyclerView's item count from the old size to the new one, or it will be thrown off.
+        if (ids.size() + batch.getSizeDelta() != newIds.size()) {
+            applyDataSetChanged(newIds, newItems, newIdsShared);
+            return;
+        }
+        swapInIds(newIds, newItems, newIdsShared);
+
+        // If the notification was for a different object/table (we'll have no updates), don't do anything.
+        if (batch.isEmpty()) return;
+        remapSelection(batch);
+        /*
+         * When we know we're currently swiping or dragging, we do a few more checks before calling the notify methods,
+         * because in those cases the real RecyclerView handles many animations without us needing to tell it what to
+         * do, and notifying it on top of that messes things up. Specifically, we don't explicitly notify it of single
+         * item moves.
+         */
+        if (!batch.isSingleMove() || shouldNotifyOfSingleItemMoves) batch.dispatchTo(this);
+    }
+
+    /**
+     * Swap in {@code newIds} as our current IDs, then call {@code notifyDataSetChanged()} because the diff took longer
+     * than {@link #diffBudgetMs} or its notifications didn't add up. The item at the top of the screen is kept where it
+     * is, if it's still there.
+     * @param newIds       New IDs.
+     * @param newItems     Items which {@code newIds} were read from.
+     * @param newIdsShared Whether {@code newIds} was handed to {@link #DIFF_EXECUTOR}.
+     */
+    private void applyDataSetChanged(UIDSnapshot newIds, OrderedRealmCollection<T> newItems, boolean newIdsShared) {
+        // Find the item at the top of the screen, and how far it is from the top, before we lose track of it.
+        RecyclerView.LayoutManager lm = rrv != null ? rrv.getRecyclerView().getLayoutManager() : null;
+        int anchorPos = -1, anchorOffset = 0;
+        if (lm != null) {
+            int firstPos = LayoutManagers.findFirstVisibleItemPosition(lm);
+            View firstView = firstPos != RecyclerView.NO_POSITION ? lm.findViewByPosition(firstPos) : null;
+            if (firstView != null && firstPos < ids.size()) {
+                anchorPos = newIds.indexOf(ids.getUID(firstPos));
+                anchorOffset = lm.getDecoratedTop(firstView) - lm.getPaddingTop();
+            }
+        }
+
+        swapInIds(newIds, newItems, newIdsShared);
+        dropSelection();
+        notifyDataSetChanged();
+        if (anchorPos != -1) LayoutManagers.scrollToPositionWithOffset(lm, anchorPos, anchorOffset);
+    }
+
+    /**
+     * Update the selection so that the same items are still selected once the notifications in {@code batch} have been
+     * sent. Items keep their selection state as they move, so no extra notifications are needed for that; the
+     * selection change listener is only called if selected items were removed, but the selection range listener is
+     * told whenever selected positions were removed or shifted.
+     * @param batch Notifications which are about to be sent to the {@code RecyclerView}.
+     */
+    private void remapSelection(UpdateBatch batch) {
+        if (lastSelectedPos != -1) lastSelectedPos = batch.mapPosition(lastSelectedPos);
+        if (selectedPositions.isEmpty()) return;
+        startSelectionChange();
+        if (!selectedPositions.apply(batch, selectionRemoved)) return;
+        if (selectionChangeListener != null && !selectionRemoved.isEmpty())
+            selectionChangeListener.itemSelectionChanged();
+        if (selectionRangeListener != null)
+            selectionRangeListener.selectedPositionsShifted(selectionRemoved, selectedPositions);
+    }
+
+    /**
+     * Clear the selection without notifying the {@code RecyclerView}, for when it's about to be told that everything
+     * changed anyway.
+     */
+    private void dropSelection() {
+        if (selectedPositions.isEmpty()) return;
+        startSelectionChange();
+        selectionRemoved.addAll(selectedPositions);
+        selectedPositions.clear();
+        lastSelectedPos = -1;
+        notifySelectionListeners();
+    }
+
+    private void startSelectionChange() {
+        selectionAdded.clear();
+        selectionRemoved.clear();
+    }
+
+    /**
+     * Select the positions from {@code from} (inclusive) to {@code to} (exclusive), keeping track of which ones are
+     * newly selected for {@link #selectionRangeListener}.
+     */
+    private void select(int from, int to) {
+        selectedPositions.add(from, to, selectionAdded);
+    }
+
+    /**
+     * De-select the positions from {@code from} (inclusive) to {@code to} (exclusive), keeping track of which ones were
+     * selected for {@link #selectionRangeListener}.
+     */
+    private void deselect(int from, int to) {
+        selectedPositions.remove(from, to, selectionRemoved);
+    }
+
+    private void notifySelectionListeners() {
+        if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+        if (selectionRangeListener != null)
+            selectionRangeListener.selectionRangesChanged(selectionAdded, selectionRemoved, selectedPositions.size());
+    }
+
+    /**
+     * Swap in {@code newIds} as our current IDs, and {@code newItems} as our current items.
+     * @param newIds       New IDs.
+     * @param newItems     Items which {@code newIds} were read from.
+     * @param newIdsShared Whether {@code newIds} was handed to {@link #DIFF_EXECUTOR}.
+     */
+    private void swapInIds(UIDSnapshot newIds, OrderedRealmCollection<T> newItems, boolean newIdsShared) {
+        // The old snapshot is no longer needed, so hang on to its buffer if we can reuse it for the next change.
+        if (ids instanceof UIDSnapshot.LongUIDSnapshot && !idsSharedWithWorker)
+            spareLongIds = (UIDSnapshot.LongUIDSnapshot) ids;
+        items = newItems;
+        ids = newIds;
+        idsSharedWithWorker = newIdsShared;
     }
 
     final void setRealmRecyclerView(RealmRecyclerView rrv) {
@@ -152,7 +628,320 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
 
     @Override
     public int getItemCount() {
-        return realmResults != null ? realmResults.size() : 0;
+        // The RecyclerView must only see the snapshot which it has been notified about, which won't match the current
+        // size of the results while a change is being coalesced or diffed asynchronously.
+        return realmResults != null ? ids.size() : 0;
+    }
+
+    /**
+     * Get the item at {@code position}, as the {@code RecyclerView} knows it. Use this rather than {@code
+     * realmResults.get(position)} in {@code onBindViewHolder}, {@code getItemId}, and {@link BubbleTextProvider}s,
+     * since if changes are coalesced or diffed asynchronously, {@link #realmResults} may already have changed in ways
+     * which the {@code RecyclerView} hasn't been told about yet.
+     * @param position Position of the item.
+     * @return Item at {@code position}, or null if it has been deleted from Realm and the {@code RecyclerView} hasn't
+     * been told yet (it will be shortly, so there's nothing to bind), or if {@code position} isn't in the list (such as
+     * the position of a header or footer which a subclass adds).
+     */
+    @SuppressWarnings("unused")
+    public final T getItem(int position) {
+        if (items == null || position < 0 || position >= ids.size()) return null;
+        T item = items.get(position);
+        return RealmObject.isValid(item) ? item : null;
+    }
+
+    /**
+     * Get the UID of the item at {@code position}, as the {@code RecyclerView} knows it. Unlike {@link #getItem(int)},
+     * this never reads from Realm, so it works even for items which have just been deleted, which makes it a good fit
+     * for {@code getItemId}.
+     * @param position Position of the item.
+     * @return UID of the item at {@code position}. Will be a {@code Long} if {@code T} is a {@link LongUIDModel}.
+     */
+    @SuppressWarnings("unused")
+    public final Object getItemUID(int position) {
+        return ids.getUID(position);
+    }
+
+    /**
+     * Get the UIDs of the items which the {@code RecyclerView} currently knows about.
+     * @return Read-only view of the UIDs, which always reflects the current ones.
+     * @deprecated UIDs are no longer kept in a {@code List}, and this used to be the {@code ids} field. Use {@link
+     * #getItemUID(int)} and {@link #getItemCount()} instead.
+     */
+    @Deprecated
+    @SuppressWarnings("unused")
+    protected final List getIds() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                return ids.getUID(index);
+            }
+
+            @Override
+            public int size() {
+                return ids.size();
+            }
+        };
+    }
+
+    /**
+     * Get whether the list is being scrubbed through, either by dragging the fast scroller's handle or by a very fast
+     * fling. While this is true, rows are only on screen for a moment, so {@code onBindViewHolder} can do a cheaper
+     * bind (such as skipping images). When scrubbing ends, the items on screen are rebound with {@link
+     * #SCRUBBING_ENDED_PAYLOAD}.
+     * <p/>
+     * This is always false unless scrubbing is turned on using {@link #setScrubbingEnabled(boolean)}.
+     * @return Whether the list is being scrubbed through.
+     */
+    @SuppressWarnings("unused")
+    public final boolean isScrubbing() {
+        return scrubbing;
+    }
+
+    /**
+     * Get whether the adapter keeps track of whether the list is being scrubbed through.
+     * @return Whether scrubbing is enabled.
+     */
+    @SuppressWarnings("unused")
+    public final boolean isScrubbingEnabled() {
+        return scrubbingEnabled;
+    }
+
+    /**
+     * Set whether the adapter should keep track of whether the list is being scrubbed through, so that {@code
+     * onBindViewHolder} can check {@link #isScrubbing()}. False by default.
+     * @param scrubbingEnabled Whether to enable scrubbing.
+     */
+    @SuppressWarnings("unused")
+    public final void setScrubbingEnabled(boolean scrubbingEnabled) {
+        if (!scrubbingEnabled) setScrubbing(false);
+        this.scrubbingEnabled = scrubbingEnabled;
+    }
+
+    /**
+     * Start or stop scrubbing. When scrubbing stops, the items on screen (and the couple just off of it which the
+     * {@code RecyclerView} may still have views for) are rebound.
+     * @param scrubbing Whether the list is being scrubbed through.
+     */
+    final void setScrubbing(boolean scrubbing) {
+        if (!scrubbingEnabled || this.scrubbing == scrubbing) return;
+        this.scrubbing = scrubbing;
+        if (scrubbing) return;
+
+        RecyclerView.LayoutManager lm = rrv != null ? rrv.getRecyclerView().getLayoutManager() : null;
+        if (lm == null) {
+            notifyItemRangeChanged(0, getItemCount(), SCRUBBING_ENDED_PAYLOAD);
+            return;
+        }
+        int first = LayoutManagers.findFirstVisibleItemPosition(lm);
+        if (first == RecyclerView.NO_POSITION) return;
+        int last = LayoutManagers.findLastVisibleItemPosition(lm);
+        int start = Math.max(0, first - SCRUBBING_REBIND_MARGIN);
+        int end = Math.min(getItemCount(), last + 1 + SCRUBBING_REBIND_MARGIN);
+        notifyItemRangeChanged(start, end - start, SCRUBBING_ENDED_PAYLOAD);
+    }
+
+    /**
+     * Called for items which the fast scroller expects to be scrolled to soon, while its handle is being dragged and
+     * the UI thread is otherwise idle. Override this to read the fields which {@code onBindViewHolder} reads, so that
+     * Realm has already loaded them by the time the items are bound. Does nothing by default.
+     * @param item Item which is likely to be bound soon.
+     */
+    @SuppressWarnings("UnusedParameters")
+    protected void onPrefetchItem(T item) {
+    }
+
+    /**
+     * Call {@link #onPrefetchItem(RealmModel)} for the items from {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    final void prefetchItems(int start, int end) {
+        if (realmResults == null) return;
+        end = Math.min(end, ids.size());
+        for (int i = Math.max(start, 0); i < end; i++) {
+            T item = getItem(i);
+            if (item != null) onPrefetchItem(item);
+        }
+    }
+
+    /**
+     * Get whether changes to the {@code RealmResults} are diffed on a background thread.
+     * @return Whether asynchronous diffing is on.
+     */
+    @SuppressWarnings("unused")
+    public final boolean getAsyncDiffing() {
+        return asyncDiffing;
+    }
+
+    /**
+     * Set whether changes to the {@code RealmResults} should be diffed on a background thread. False by default.
+     * <p/>
+     * When on, the UIDs of the new results are still read on the main thread, but the diff itself is calculated on a
+     * background thread and only the finished notifications are sent back to the main thread. If another change comes
+     * in while a diff is being calculated, that diff's result is thrown away.
+     * <p/>
+     * Since the {@code RecyclerView} can't be told about a change until its diff is done, {@link #getItemCount()} will
+     * return the size of the last snapshot the {@code RecyclerView} was notified of rather than the current size of
+     * {@link #realmResults}. For a short time after a change, positions won't line up with {@link #realmResults}, so
+     * read items using {@link #getItem(int)}, which looks them up in that same snapshot.
+     * @param asyncDiffing Whether to diff asynchronously.
+     */
+    @SuppressWarnings("unused")
+    public final void setAsyncDiffing(boolean asyncDiffing) {
+        if (this.asyncDiffing == asyncDiffing) return;
+        this.asyncDiffing = asyncDiffing;
+        // The results are up to date with the RecyclerView if we weren't pinning them, so pin them before they change.
+        if (asyncDiffing && items == realmResults) items = pinItems();
+        // If we're switching off with a diff in flight, we need to catch up right away instead.
+        if (!asyncDiffing && diffInFlight) onRealmResultsChanged();
+    }
+
+    /**
+     * Get the strategy used to work out which notifications to send when the {@code RealmResults} change.
+     * @return Diff strategy.
+     */
+    @SuppressWarnings("unused")
+    public final DiffStrategy getDiffStrategy() {
+        return diffStrategy;
+    }
+
+    /**
+     * Set the strategy used to work out which notifications to send when the {@code RealmResults} change. {@link
+     * DiffStrategy#adaptive()} by default.
+     * <p/>
+     * This only matters when the adapter can't use Realm's own change set for a change.
+     * @param diffStrategy Diff strategy.
+     */
+    @SuppressWarnings("unused")
+    public final void setDiffStrategy(DiffStrategy diffStrategy) {
+        if (diffStrategy == null) throw new IllegalArgumentException("diffStrategy cannot be null.");
+        this.diffStrategy = diffStrategy;
+    }
+
+    /**
+     * Get whether the adapter assumes that items are only ever added at the start or end of the {@code RealmResults}.
+     * @return Whether inserts are assumed to only happen at the edges.
+     */
+    @SuppressWarnings("unused")
+    public final boolean getInsertsOnlyAtEdges() {
+        return insertsOnlyAtEdges;
+    }
+
+    /**
+     * Set whether the adapter may assume that, whenever the {@code RealmResults} grow, it's because items were added at
+     * the start or end of the list, which is typical of time-ordered feeds and logs. False by default.
+     * <p/>
+     * When on and the list grows, the adapter only checks the size of the list and the UIDs of the first and last items
+     * it already knew about. If they're where an append or a prepend would put them, it reads just the new items and
+     * sends a single {@code notifyItemRangeInserted()}, skipping the diff. This makes adding {@code k} items to a very
+     * large list cost {@code O(k)}. Anything else that happened in the same change (such as items in the middle being
+     * reordered or having their content changed) won't be noticed, so only turn this on if that can't happen.
+     * <p/>
+     * This only matters when the adapter can't use Realm's own change set for a change.
+     * @param insertsOnlyAtEdges Whether inserts only happen at the start or end of the list.
+     */
+    @SuppressWarnings("unused")
+    public final void setInsertsOnlyAtEdges(boolean insertsOnlyAtEdges) {
+        this.insertsOnlyAtEdges = insertsOnlyAtEdges;
+    }
+
+    /**
+     * Get whether diffs of very large {@code RealmResults} are spread across multiple threads.
+     * @return Whether parallel diffing is on.
+     */
+    @SuppressWarnings("unused")
+    public final boolean getParallelDiffing() {
+        return parallelDiffing;
+    }
+
+    /**
+     * Set whether diffs of very large {@code RealmResults} should be spread across multiple threads. False by default.
+     * <p/>
+     * When on, looking up where each item was before the change is split across a pool of background threads shared by
+     * all adapters, with the thread doing the diff taking part too. This only kicks in for lists with tens of thousands
+     * of items and only if {@link #setAsyncDiffing(boolean)} is on, so that the main thread never waits on other
+     * threads. The notifications sent are the same either way.
+     * @param parallelDiffing Whether to diff in parallel.
+     */
+    @SuppressWarnings("unused")
+    public final void setParallelDiffing(boolean parallelDiffing) {
+        this.parallelDiffing = parallelDiffing;
+    }
+
+    /**
+     * Get the interval at which changes to the {@code RealmResults} are coalesced.
+     * @return Coalescing interval in milliseconds, or one of {@link #COALESCE_OFF} or {@link #COALESCE_PER_FRAME}.
+     */
+    @SuppressWarnings("unused")
+    public final long getChangeCoalescingInterval() {
+        return coalescingInterval;
+    }
+
+    /**
+     * Set how changes to the {@code RealmResults} should be coalesced. {@link #COALESCE_OFF} by default.
+     * <p/>
+     * When something writes to Realm in many small transactions, Realm will notify us once per commit. With coalescing
+     * turned on, a change only marks the adapter as dirty, and the latest state of the {@code RealmResults} is
+     * processed at most once per frame (for {@link #COALESCE_PER_FRAME}) or once per {@code intervalMs}, no matter how
+     * many commits happened in between.
+     * <p/>
+     * Just like with {@link #setAsyncDiffing(boolean)}, positions won't line up with {@link #realmResults} while a
+     * change is pending, so read items using {@link #getItem(int)}.
+     * @param intervalMs {@link #COALESCE_OFF}, {@link #COALESCE_PER_FRAME}, or the minimum number of milliseconds
+     *                   between processing changes.
+     */
+    @SuppressWarnings("unused")
+    public final void setChangeCoalescingInterval(long intervalMs) {
+        if (intervalMs < COALESCE_OFF) throw new IllegalArgumentException("intervalMs must be >= COALESCE_OFF.");
+        this.coalescingInterval = intervalMs;
+        // If we're switching off with a change pending, catch up right away. If we're switching on, the results are up
+        // to date with the RecyclerView if we weren't pinning them, so pin them before they change.
+        if (intervalMs == COALESCE_OFF && changePending) processPendingChange.run();
+        else if (intervalMs != COALESCE_OFF && items == realmResults) items = pinItems();
+    }
+
+    /**
+     * Get the most time that diffing a change to the {@code RealmResults} may take.
+     * @return Diff budget in milliseconds, or {@link #NO_DIFF_BUDGET}.
+     */
+    @SuppressWarnings("unused")
+    public final long getDiffBudget() {
+        return diffBudgetMs;
+    }
+
+    /**
+     * Set the most time that diffing a change to the {@code RealmResults} may take. {@link #NO_DIFF_BUDGET} by default.
+     * <p/>
+     * If a diff takes longer than this (such as when a very large list is completely re-sorted), it is abandoned and
+     * {@code notifyDataSetChanged()} is called instead, keeping the item at the top of the screen where it is. Use
+     * {@link #getDiffFallbackCount()} to see how often this happens.
+     * @param budgetMs Diff budget in milliseconds, or {@link #NO_DIFF_BUDGET}.
+     */
+    @SuppressWarnings("unused")
+    public final void setDiffBudget(long budgetMs) {
+        if (budgetMs < 0L) throw new IllegalArgumentException("budgetMs must be >= 0.");
+        this.diffBudgetMs = budgetMs;
+    }
+
+    /**
+     * Get the number of times that the UIDs of the {@code RealmResults} have been diffed. Changes which are applied
+     * using Realm's change sets aren't counted.
+     * @return Number of diffs.
+     */
+    @SuppressWarnings("unused")
+    public final int getDiffCount() {
+        return diffCount;
+    }
+
+    /**
+     * Get the number of diffs which went over the diff budget, and so were replaced by {@code
+     * notifyDataSetChanged()}. Changes which fall back to {@code notifyDataSetChanged()} for other reasons (such as a
+     * change set whose item counts don't add up) aren't counted.
+     * @return Number of diffs which fell back to {@code notifyDataSetChanged()}.
+     * @see #setDiffBudget(long)
+     */
+    @SuppressWarnings("unused")
+    public final int getDiffFallbackCount() {
+        return diffFallbackCount;
     }
 
     /**
@@ -169,7 +958,13 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
 
         selectedPositions.clear();
         lastSelectedPos = -1;
-        ids = getIdsOfRealmResults();
+        diffGeneration++;
+        diffInFlight = false;
+        changePending = false;
+        pendingChangeSet = null;
+        items = pinItems();
+        ids = getIdsOf(items);
+        idsSharedWithWorker = false;
         notifyDataSetChanged();
     }
 
@@ -195,28 +990,30 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
     /**
      * Set the selected state of the item at {@code position}.
      * <p/>
-     * This method will call notifyItemChanged(position) when it completes; it is up to extending class to check if the
-     * position is selected when onBindViewHolder gets called again and react accordingly.
+     * This method will call notifyItemChanged(position, {@link #SELECTION_CHANGED_PAYLOAD}) when it completes; it is up
+     * to extending class to check if the position is selected when onBindViewHolder gets called again and react
+     * accordingly.
      * @param selected Whether or not the item is selected.
      * @param position Position of the item to set.
      */
     @SuppressWarnings("unused")
     public final void setSelected(boolean selected, int position) {
-        if (position < 0 || position >= realmResults.size()) return;
+        if (position < 0 || position >= ids.size()) return;
 
         // Don't trigger a redraw if we've already selected the item.
         if (selected == selectedPositions.contains(position)) return;
 
+        startSelectionChange();
         if (selected) {
-            selectedPositions.add(position);
+            select(position, position + 1);
             lastSelectedPos = position;
         } else {
-            selectedPositions.remove(position);
+            deselect(position, position + 1);
             lastSelectedPos = -1;
         }
 
-        notifyItemChanged(position);
-        if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+        notifyItemChanged(position, SELECTION_CHANGED_PAYLOAD);
+        notifySelectionListeners();
     }
 
     /**
@@ -225,17 +1022,29 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
      */
     @SuppressWarnings("unused")
     public final void toggleSelected(int position) {
-        if (position < 0 || position >= realmResults.size()) return;
+        if (position < 0 || position >= ids.size()) return;
 
-        if (!selectedPositions.remove(position)) {
-            selectedPositions.add(position);
+        startSelectionChange();
+        if (!selectedPositions.contains(position)) {
+            select(position, position + 1);
             lastSelectedPos = position;
         } else {
+            deselect(position, position + 1);
             lastSelectedPos = -1;
         }
 
-        notifyItemChanged(position);
-        if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+        notifyItemChanged(position, SELECTION_CHANGED_PAYLOAD);
+        notifySelectionListeners();
+    }
+
+    /**
+     * Get the selected positions. The selection can only be changed through the adapter's methods, such as {@link
+     * #setSelected(boolean, int)}.
+     * @return Selected positions, which always reflect the current selection.
+     */
+    @SuppressWarnings("unused")
+    public final PositionSelection getSelectedPositions() {
+        return selectedPositions;
     }
 
     /**
@@ -249,18 +1058,140 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
 
     /**
      * Get the RealmObjects whose items are currently selected.
+     * <p/>
+     * This reads every selected object up front; if you only need to go through them once, {@link #getSelectedItems()}
+     * is cheaper.
      * @return List of realm objects, or null if called when the load more view, section headers, or the footer view are
      * added/enabled.
      */
     @SuppressWarnings("unused")
     public final List<T> getSelectedRealmObjects() {
-        ArrayList<T> realmObjects = new ArrayList<>();
-        // If everything is selected, be quick.
-        if (realmResults.size() == selectedPositions.size()) realmObjects.addAll(realmResults);
-        else for (Integer i : selectedPositions) realmObjects.add(realmResults.get(i));
+        ArrayList<T> realmObjects = new ArrayList<>(selectedPositions.size());
+        // If everything is selected and the results can't be ahead of the RecyclerView, be quick.
+        if (items == realmResults && ids.size() == selectedPositions.size()) realmObjects.addAll(realmResults);
+        else {
+            for (int r = 0; r < selectedPositions.getRangeCount(); r++) {
+                for (int i = selectedPositions.getRangeStart(r); i < selectedPositions.getRangeEnd(r); i++) {
+                    T item = getItem(i);
+                    if (item != null) realmObjects.add(item);
+                }
+            }
+        }
         return realmObjects;
     }
 
+    /**
+     * Get a view of the RealmObjects whose items are currently selected, in order of position. Objects are only read
+     * from the {@code RealmResults} as they are iterated over.
+     * <p/>
+     * The view reflects the current selection, so don't change the selection or the {@code RealmResults} while
+     * iterating over it.
+     * @return Iterable view of the selected realm objects.
+     */
+    @SuppressWarnings("unused")
+    public final Iterable<T> getSelectedItems() {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new SelectedItemIterator();
+            }
+        };
+    }
+
+    /**
+     * Delete the RealmObjects whose items are currently selected from Realm, in a single transaction (or in the current
+     * one, if {@code realm} is already in a transaction). Objects are deleted by the positions the {@code RecyclerView}
+     * knows them at (see {@link #getItem(int)}), and deleting the whole list is a single operation. Items which have
+     * already been deleted are skipped.
+     * <p/>
+     * The selection is updated once the {@code RealmResults} change, just like for any other removal.
+     * @param realm Realm instance on this thread, which {@code realmResults} belongs to.
+     */
+    @SuppressWarnings("unused")
+    public final void deleteSelected(Realm realm) {
+        if (realmResults == null || selectedPositions.isEmpty()) return;
+        executeInTransaction(realm, new Realm.Transaction() {
+            @Override
+            public void execute(Realm realm) {
+                if (selectedPositions.size() == ids.size()) {
+                    items.deleteAllFromRealm();
+                    return;
+                }
+                // Go backwards so that, if the items aren't pinned, deleting an item doesn't change the positions of
+                // the ones still to be deleted. Pinned items keep their positions, but may already have been deleted.
+                boolean pinned = items != realmResults;
+                for (int r = selectedPositions.getRangeCount() - 1; r >= 0; r--)
+                    for (int i = selectedPositions.getRangeEnd(r) - 1; i >= selectedPositions.getRangeStart(r); i--)
+                        if (!pinned || getItem(i) != null) items.deleteFromRealm(i);
+            }
+        });
+    }
+
+    /**
+     * Call {@code action} for each of the RealmObjects whose items are currently selected, in a single transaction (or
+     * in the current one, if {@code realm} is already in a transaction).
+     * <p/>
+     * Items are read by the positions the {@code RecyclerView} knows them at (see {@link #getItem(int)}), and items
+     * which have already been deleted are skipped. {@code action} must not delete items or change them in a way which
+     * changes their positions in the {@code RealmResults}, since the positions which are still to be visited would no
+     * longer refer to the selected items.
+     * @param realm  Realm instance on this thread, which {@code realmResults} belongs to.
+     * @param action Action to apply to each selected item.
+     */
+    @SuppressWarnings("unused")
+    public final void applyToSelected(Realm realm, final SelectedItemAction<T> action) {
+        if (realmResults == null || selectedPositions.isEmpty()) return;
+        executeInTransaction(realm, new Realm.Transaction() {
+            @Override
+            public void execute(Realm realm) {
+                for (T item : getSelectedItems()) action.apply(item);
+            }
+        });
+    }
+
+    private static void executeInTransaction(Realm realm, Realm.Transaction transaction) {
+        if (realm.isInTransaction()) transaction.execute(realm);
+        else realm.executeTransaction(transaction);
+    }
+
+    /**
+     * Iterates over the selected items, one range of selected positions at a time. Reads one item ahead so that items
+     * which have been deleted since the {@code RecyclerView} last heard about a change can be skipped.
+     */
+    private final class SelectedItemIterator implements Iterator<T> {
+        private int range = 0;
+        private int position = selectedPositions.isEmpty() ? -1 : selectedPositions.getRangeStart(0);
+        private T next = advance();
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null) throw new NoSuchElementException();
+            T item = next;
+            next = advance();
+            return item;
+        }
+
+        private T advance() {
+            while (range < selectedPositions.getRangeCount()) {
+                T item = getItem(position++);
+                if (position == selectedPositions.getRangeEnd(range) && ++range < selectedPositions.getRangeCount())
+                    position = selectedPositions.getRangeStart(range);
+                if (item != null) return item;
+            }
+            return null;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * Extends the current selection from the last selected item to the given {@code position}. If {@code position} is
      * already selected, de-selects it. If nothing is selected or the last item tapped was de-selected, just selects
@@ -269,37 +1200,35 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
      */
     @SuppressWarnings("unused")
     public final void extendSelectionTo(int position) {
-        if (position < 0 || position >= realmResults.size()) return;
+        if (position < 0 || position >= ids.size()) return;
 
+        startSelectionChange();
         if (selectedPositions.contains(position)) {
             // If this is already selected, de-select it.
-            selectedPositions.remove(position);
-            notifyItemChanged(position);
+            deselect(position, position + 1);
+            notifyItemChanged(position, SELECTION_CHANGED_PAYLOAD);
             lastSelectedPos = -1;
-            if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+            notifySelectionListeners();
             return;
         } else if (lastSelectedPos == -1) {
             // If we don't have a previously selected position, just select this one.
-            selectedPositions.add(position);
-            notifyItemChanged(position);
-            if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+            select(position, position + 1);
+            notifyItemChanged(position, SELECTION_CHANGED_PAYLOAD);
+            notifySelectionListeners();
             return;
         }
 
         if (lastSelectedPos < position) {
             // Ex: lastSelectedPos = 1, pos = 3. Need to select 2, 3.
-            for (int i = lastSelectedPos + 1; i <= position; i++) selectedPositions.add(i);
-
-            notifyItemRangeChanged(lastSelectedPos + 1, position - lastSelectedPos);
-            lastSelectedPos = -1;
+            select(lastSelectedPos + 1, position + 1);
         } else {
             // lastSelectedPos = 3, pos = 1. Need to select 1, 2.
-            for (int i = position; i < lastSelectedPos; i++) selectedPositions.add(i);
-
-            notifyItemRangeChanged(position, lastSelectedPos - position);
-            lastSelectedPos = -1;
+            select(position, lastSelectedPos);
         }
-        if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+        lastSelectedPos = -1;
+        // Only redraw the items which weren't already selected.
+        notifyRangesChanged(selectionAdded);
+        notifySelectionListeners();
     }
 
     /**
@@ -307,10 +1236,11 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
      */
     @SuppressWarnings("unused")
     public final void selectAll() {
-        // Add all positions.
-        for (int i = 0; i < realmResults.size(); i++) selectedPositions.add(i);
-        notifyDataSetChanged();
-        if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+        // Add all positions as a single range, then only redraw the items which weren't already selected.
+        startSelectionChange();
+        select(0, ids.size());
+        notifyRangesChanged(selectionAdded);
+        notifySelectionListeners();
     }
 
     /**
@@ -320,23 +1250,33 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
     public final void clearSelections() {
         // We definitely don't want to do any redrawing if we don't have anything selected!
         if (selectedPositions.isEmpty()) return;
-        // If there's only one item selected, we can be efficient and just redraw one view.
-        int oneItemPos = selectedPositions.size() == 1 ? (int) selectedPositions.toArray()[0] : -1;
 
+        startSelectionChange();
+        selectionRemoved.addAll(selectedPositions);
         selectedPositions.clear();
         lastSelectedPos = -1;
 
-        if (oneItemPos != -1) notifyItemChanged(oneItemPos);
-        else notifyDataSetChanged();
-        if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+        notifyRangesChanged(selectionRemoved);
+        notifySelectionListeners();
     }
 
     /**
-     * Calls {@code notifyItemChanged()} on each of the currently selected positions.
+     * Calls {@code notifyItemRangeChanged()} with {@link #SELECTION_CHANGED_PAYLOAD} on each run of currently selected
+     * positions.
      */
     @SuppressWarnings("WeakerAccess")
     public void notifySelectedItemsChanged() {
-        for (Integer i : selectedPositions) notifyItemChanged(i);
+        notifyRangesChanged(selectedPositions);
+    }
+
+    /**
+     * Calls {@code notifyItemRangeChanged()} with {@link #SELECTION_CHANGED_PAYLOAD} on each range in {@code ranges}.
+     */
+    private void notifyRangesChanged(PositionSelection ranges) {
+        for (int r = 0; r < ranges.getRangeCount(); r++) {
+            int start = ranges.getRangeStart(r);
+            notifyItemRangeChanged(start, ranges.getRangeEnd(r) - start, SELECTION_CHANGED_PAYLOAD);
+        }
     }
 
     /**
@@ -348,6 +1288,16 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
         this.selectionChangeListener = listener;
     }
 
+    /**
+     * Set the listener which should be notified of exactly which positions were selected and de-selected when the
+     * selection changes. This can be used alongside a {@link SelectionChangeListener}.
+     * @param listener The selection range listener.
+     */
+    @SuppressWarnings("unused")
+    public void setSelectionRangeListener(SelectionRangeListener listener) {
+        this.selectionRangeListener = listener;
+    }
+
     /**
      * Called when an item has been moved whilst dragging. There are two things that overriding classes must
      * consider:<ul><li>This is called EVERY time an item "moves", not just when it is "dropped".</li><li>An item
@@ -479,9 +1429,8 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
      */
     @SuppressWarnings("unused")
     public void saveInstanceState(Bundle out) {
-        if (out != null) {
-            out.putIntegerArrayList(SEL_POSITIONS_KEY, new ArrayList<>(selectedPositions));
-        }
+        // Save ranges rather than positions so that the state stays small no matter how many items are selected.
+        if (out != null) out.putIntArray(SEL_RANGES_KEY, selectedPositions.toRangeArray());
     }
 
     /**
@@ -494,13 +1443,38 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmModel & UIDModel,
     @SuppressWarnings("unused")
     public void restoreInstanceState(Bundle in) {
         if (in != null) {
-            ArrayList<Integer> temp = in.getIntegerArrayList(SEL_POSITIONS_KEY);
-            if (temp == null) selectedPositions = new HashSet<>();
-            else {
-                selectedPositions = new HashSet<>(temp);
-                notifySelectedItemsChanged();
-                if (selectionChangeListener != null) selectionChangeListener.itemSelectionChanged();
+            int[] ranges = in.getIntArray(SEL_RANGES_KEY);
+            // State saved by older versions has a list of positions instead.
+            ArrayList<Integer> positions = ranges == null ? in.getIntegerArrayList(SEL_POSITIONS_KEY) : null;
+            selectedPositions.clear();
+            if (ranges != null || positions != null) {
+                startSelectionChange();
+                if (ranges != null) selectionAdded.addRangeArray(ranges);
+                else for (int i : positions) selectionAdded.add(i, i + 1);
+                selectedPositions.addAll(selectionAdded);
+                notifyVisibleRangesChanged(selectionAdded);
+                notifySelectionListeners();
             }
         }
     }
+
+    /**
+     * Like {@link #notifyRangesChanged(PositionSelection)}, but only for the parts of the ranges which are on screen.
+     * Items which aren't on screen will be bound from scratch anyway when they are scrolled to.
+     */
+    private void notifyVisibleRangesChanged(PositionSelection ranges) {
+        RecyclerView.LayoutManager lm = rrv != null ? rrv.getRecyclerView().getLayoutManager() : null;
+        if (lm == null) {
+            notifyRangesChanged(ranges);
+            return;
+        }
+        // If nothing has been laid out yet, there's nothing to redraw.
+        int first = LayoutManagers.findFirstVisibleItemPosition(lm);
+        if (first == RecyclerView.NO_POSITION) return;
+        int last = LayoutManagers.findLastVisibleItemPosition(lm);
+        for (int r = 0; r < ranges.getRangeCount(); r++) {
+            int start = Math.max(ranges.getRangeStart(r), first), end = Math.min(ranges.getRangeEnd(r), last + 1);
+            if (start < end) notifyItemRangeChanged(start, end - start, SELECTION_CHANGED_PAYLOAD);
+        }
+    }
 }
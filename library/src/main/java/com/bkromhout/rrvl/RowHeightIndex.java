@@ -0,0 +1,189 @@
+package com.bkromhout.rrvl;
+
+import java.util.Arrays;
+
+/**
+ * Index of the heights of the rows in a list, used by {@link FastScroller} to map between scroll offsets and positions
+ * when rows have different heights.
+ * <p/>
+ * Heights are recorded as rows are laid out, and rows which haven't been measured yet are assumed to be the average
+ * height of the ones which have. Prefix sums are kept in Fenwick trees, so finding the offset of a position or the
+ * position at an offset is {@code O(log n)}. Inserting, removing, or moving rows shifts the plain array of heights, and
+ * the trees are rebuilt from it the next time they're needed.
+ */
+final class RowHeightIndex {
+    /**
+     * Height of each row, or 0 if it hasn't been measured.
+     */
+    private int[] heights = new int[16];
+    private int itemCount = 0;
+    private long measuredTotal = 0;
+    private int measuredCount = 0;
+
+    /**
+     * 1-based Fenwick trees of the measured heights and of the number of measured rows.
+     */
+    private long[] heightTree = new long[1];
+    private int[] countTree = new int[1];
+    private boolean treesValid = false;
+
+    int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return Whether any rows have been measured, without which nothing can be estimated.
+     */
+    boolean hasMeasurements() {
+        return measuredCount > 0;
+    }
+
+    /**
+     * Forget all heights, and start over with {@code count} unmeasured rows.
+     */
+    void reset(int count) {
+        ensureCapacity(count);
+        Arrays.fill(heights, 0, count, 0);
+        itemCount = count;
+        measuredTotal = 0;
+        measuredCount = 0;
+        treesValid = false;
+    }
+
+    /**
+     * Record the height of the row at {@code position}.
+     */
+    void setHeight(int position, int height) {
+        if (position < 0 || position >= itemCount || height < 0) return;
+        int old = heights[position];
+        if (old == height) return;
+        heights[position] = height;
+        measuredTotal += height - old;
+        int countDelta = (height != 0 ? 1 : 0) - (old != 0 ? 1 : 0);
+        measuredCount += countDelta;
+        if (treesValid) {
+            for (int i = position + 1; i <= itemCount; i += i & -i) {
+                heightTree[i] += height - old;
+                countTree[i] += countDelta;
+            }
+        }
+    }
+
+    /**
+     * Add {@code count} unmeasured rows at {@code position}.
+     */
+    void insert(int position, int count) {
+        if (count <= 0 || position < 0 || position > itemCount) return;
+        ensureCapacity(itemCount + count);
+        System.arraycopy(heights, position, heights, position + count, itemCount - position);
+        Arrays.fill(heights, position, position + count, 0);
+        itemCount += count;
+        treesValid = false;
+    }
+
+    /**
+     * Remove {@code count} rows starting at {@code position}.
+     */
+    void remove(int position, int count) {
+        if (count <= 0 || position < 0 || position + count > itemCount) return;
+        forget(position, count);
+        System.arraycopy(heights, position + count, heights, position, itemCount - position - count);
+        itemCount -= count;
+        treesValid = false;
+    }
+
+    /**
+     * Move the row at {@code from} to {@code to}, keeping its height.
+     */
+    void move(int from, int to) {
+        if (from == to || from < 0 || from >= itemCount || to < 0 || to >= itemCount) return;
+        int height = heights[from];
+        if (from < to) System.arraycopy(heights, from + 1, heights, from, to - from);
+        else System.arraycopy(heights, to, heights, to + 1, from - to);
+        heights[to] = height;
+        treesValid = false;
+    }
+
+    /**
+     * Forget the heights of {@code count} rows starting at {@code position}, because their content has changed.
+     */
+    void forget(int position, int count) {
+        for (int i = Math.max(position, 0); i < Math.min(position + count, itemCount); i++) setHeight(i, 0);
+    }
+
+    /**
+     * @return Height assumed for rows which haven't been measured.
+     */
+    private double estimatedHeight() {
+        return measuredCount == 0 ? 0d : (double) measuredTotal / measuredCount;
+    }
+
+    /**
+     * @return Total height of all rows.
+     */
+    long getTotalHeight() {
+        return measuredTotal + Math.round((itemCount - measuredCount) * estimatedHeight());
+    }
+
+    /**
+     * @return Total height of the rows before {@code position}.
+     */
+    long getOffsetOf(int position) {
+        ensureTrees();
+        long height = 0;
+        int count = 0;
+        for (int i = Math.min(position, itemCount); i > 0; i -= i & -i) {
+            height += heightTree[i];
+            count += countTree[i];
+        }
+        return height + Math.round((Math.min(position, itemCount) - count) * estimatedHeight());
+    }
+
+    /**
+     * @return Position of the row which covers {@code offset} pixels from the top of the list, clamped to the rows
+     * which exist.
+     */
+    int findPosition(long offset) {
+        if (itemCount == 0) return 0;
+        ensureTrees();
+        double estimate = estimatedHeight();
+        int position = 0;
+        double remaining = offset;
+        // Walk down the tree, skipping whole blocks of rows which end at or before the offset.
+        for (int step = Integer.highestOneBit(itemCount); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next > itemCount) continue;
+            double blockHeight = heightTree[next] + (step - countTree[next]) * estimate;
+            if (blockHeight <= remaining) {
+                position = next;
+                remaining -= blockHeight;
+            }
+        }
+        return Math.min(position, itemCount - 1);
+    }
+
+    private void ensureTrees() {
+        if (treesValid) return;
+        if (heightTree.length < itemCount + 1) {
+            heightTree = new long[heights.length + 1];
+            countTree = new int[heights.length + 1];
+        } else {
+            Arrays.fill(heightTree, 0, itemCount + 1, 0);
+            Arrays.fill(countTree, 0, itemCount + 1, 0);
+        }
+        for (int i = 1; i <= itemCount; i++) {
+            heightTree[i] += heights[i - 1];
+            if (heights[i - 1] != 0) countTree[i]++;
+            int parent = i + (i & -i);
+            if (parent <= itemCount) {
+                heightTree[parent] += heightTree[i];
+                countTree[parent] += countTree[i];
+            }
+        }
+        treesValid = true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > heights.length) heights = Arrays.copyOf(heights, Math.max(heights.length * 2, capacity));
+    }
+}
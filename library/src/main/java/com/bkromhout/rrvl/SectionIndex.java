@@ -0,0 +1,192 @@
+package com.bkromhout.rrvl;
+
+import java.util.Arrays;
+
+/**
+ * Index of the sections in a list, used by {@link FastScroller} to look up bubble text without asking the {@link
+ * BubbleTextProvider} during a drag.
+ * <p/>
+ * A section is a run of consecutive items which have the same bubble text, so the index is just the position where
+ * each section starts (in a sorted primitive array) and its text. Finding the text for a position is a binary search,
+ * and when items are inserted, removed, moved, or changed, only those items' text is read from the provider.
+ */
+final class SectionIndex {
+    /**
+     * Section {@code i} covers positions {@code [starts[i], starts[i + 1])}, or up to {@link #itemCount} for the last
+     * one. Neighbouring sections never have equal text.
+     */
+    private int[] starts = new int[16];
+    private String[] texts = new String[16];
+    private int sectionCount = 0;
+    private int itemCount = 0;
+
+    /**
+     * Sections for items which are about to be inserted, collected before making room for them.
+     */
+    private int[] newStarts = new int[16];
+    private String[] newTexts = new String[16];
+    private int newSectionCount = 0;
+
+    int getItemCount() {
+        return itemCount;
+    }
+
+    int getSectionCount() {
+        return sectionCount;
+    }
+
+    /**
+     * Get the bubble text for the item at {@code position}.
+     * @param position Position of the item.
+     * @return Text of the section which the item is in, or null if {@code position} isn't in the index.
+     */
+    String getText(int position) {
+        if (position < 0 || position >= itemCount) return null;
+        return texts[lastSectionStartingAtOrBefore(position)];
+    }
+
+    /**
+     * Throw away the index and build it again by reading the text of all {@code count} items from {@code provider}.
+     */
+    void rebuild(BubbleTextProvider provider, int count) {
+        sectionCount = 0;
+        itemCount = 0;
+        Arrays.fill(texts, null);
+        insert(provider, 0, count);
+    }
+
+    /**
+     * Add {@code count} items at {@code position}, reading their text from {@code provider}. If {@code provider} is
+     * null, the items are added with null text, which should be filled in later using {@link
+     * #change(BubbleTextProvider, int, int)}.
+     */
+    void insert(BubbleTextProvider provider, int position, int count) {
+        if (count <= 0) return;
+        int i = split(position);
+        newSectionCount = 0;
+        String prev = i > 0 ? texts[i - 1] : null;
+        for (int p = position; p < position + count; p++) {
+            String text = provider != null ? provider.getFastScrollBubbleText(p) : null;
+            // An item with the same text as the one before it just extends that item's section.
+            if ((i > 0 || p > position) && equal(text, prev)) continue;
+            addNewSection(p, text);
+            prev = text;
+        }
+        addNewSections(i, count);
+    }
+
+    /**
+     * Remove {@code count} items starting at {@code position}.
+     */
+    void remove(int position, int count) {
+        if (count <= 0) return;
+        int lo = split(position), hi = split(position + count);
+        System.arraycopy(starts, hi, starts, lo, sectionCount - hi);
+        System.arraycopy(texts, hi, texts, lo, sectionCount - hi);
+        Arrays.fill(texts, sectionCount - (hi - lo), sectionCount, null);
+        sectionCount -= hi - lo;
+        for (int j = lo; j < sectionCount; j++) starts[j] -= count;
+        itemCount -= count;
+        mergeIntoPrevious(lo);
+    }
+
+    /**
+     * Move the item at {@code from} to {@code to}. Its text is kept, so the provider isn't needed.
+     */
+    void move(int from, int to) {
+        if (from == to || from < 0 || from >= itemCount) return;
+        String text = getText(from);
+        remove(from, 1);
+        int i = split(to);
+        newSectionCount = 0;
+        if (i == 0 || !equal(text, texts[i - 1])) addNewSection(to, text);
+        addNewSections(i, 1);
+    }
+
+    /**
+     * Read the text for the {@code count} items starting at {@code position} from {@code provider} again.
+     */
+    void change(BubbleTextProvider provider, int position, int count) {
+        remove(position, count);
+        insert(provider, position, count);
+    }
+
+    /**
+     * Make sure that a section starts at {@code position}, by splitting the section it's in if needed.
+     * @return Index of the section which starts at {@code position}, or {@link #sectionCount} if {@code position} is
+     * at the end of the list.
+     */
+    private int split(int position) {
+        if (position >= itemCount) return sectionCount;
+        int i = lastSectionStartingAtOrBefore(position);
+        if (starts[i] == position) return i;
+        // This leaves two neighbouring sections with the same text, so callers must merge them again.
+        ensureCapacity(sectionCount + 1);
+        System.arraycopy(starts, i + 1, starts, i + 2, sectionCount - i - 1);
+        System.arraycopy(texts, i + 1, texts, i + 2, sectionCount - i - 1);
+        starts[i + 1] = position;
+        texts[i + 1] = texts[i];
+        sectionCount++;
+        return i + 1;
+    }
+
+    private void addNewSection(int start, String text) {
+        if (newSectionCount == newStarts.length) {
+            newStarts = Arrays.copyOf(newStarts, newSectionCount * 2);
+            newTexts = Arrays.copyOf(newTexts, newSectionCount * 2);
+        }
+        newStarts[newSectionCount] = start;
+        newTexts[newSectionCount++] = text;
+    }
+
+    /**
+     * Put the collected new sections in at index {@code i}, and shift the sections after them to make room for {@code
+     * count} new items.
+     */
+    private void addNewSections(int i, int count) {
+        ensureCapacity(sectionCount + newSectionCount);
+        System.arraycopy(starts, i, starts, i + newSectionCount, sectionCount - i);
+        System.arraycopy(texts, i, texts, i + newSectionCount, sectionCount - i);
+        System.arraycopy(newStarts, 0, starts, i, newSectionCount);
+        System.arraycopy(newTexts, 0, texts, i, newSectionCount);
+        Arrays.fill(newTexts, 0, newSectionCount, null);
+        sectionCount += newSectionCount;
+        for (int j = i + newSectionCount; j < sectionCount; j++) starts[j] += count;
+        itemCount += count;
+        mergeIntoPrevious(i + newSectionCount);
+    }
+
+    /**
+     * If section {@code i} has the same text as the one before it, merge it into that one.
+     */
+    private void mergeIntoPrevious(int i) {
+        if (i <= 0 || i >= sectionCount || !equal(texts[i - 1], texts[i])) return;
+        System.arraycopy(starts, i + 1, starts, i, sectionCount - i - 1);
+        System.arraycopy(texts, i + 1, texts, i, sectionCount - i - 1);
+        texts[--sectionCount] = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= starts.length) return;
+        int newLength = Math.max(starts.length * 2, capacity);
+        starts = Arrays.copyOf(starts, newLength);
+        texts = Arrays.copyOf(texts, newLength);
+    }
+
+    /**
+     * @return Index of the last section which starts at or before {@code position}, or -1 if there isn't one.
+     */
+    private int lastSectionStartingAtOrBefore(int position) {
+        int lo = 0, hi = sectionCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= position) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,15 @@
+package com.bkromhout.rrvl;
+
+import io.realm.RealmModel;
+
+/**
+ * An action to apply to each selected item using {@link RealmRecyclerViewAdapter#applyToSelected}.
+ * @param <T> Type of realm object in the adapter.
+ */
+public interface SelectedItemAction<T extends RealmModel> {
+    /**
+     * Called for each selected item, from within a write transaction.
+     * @param item A selected item.
+     */
+    void apply(T item);
+}
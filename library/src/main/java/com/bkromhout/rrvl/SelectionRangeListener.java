@@ -0,0 +1,30 @@
+package com.bkromhout.rrvl;
+
+/**
+ * Implementers will be notified when items are selected or unselected, along with exactly which positions changed, so
+ * that they can update themselves incrementally rather than re-reading the whole selection.
+ * @see SelectionChangeListener
+ */
+public interface SelectionRangeListener {
+    /**
+     * Called when the item selection set changes.
+     * <p/>
+     * {@code added} and {@code removed} are reused by the adapter, so don't hold on to them after this returns.
+     * @param added         Positions which were selected.
+     * @param removed       Positions which were de-selected.
+     * @param selectedCount Number of items which are now selected.
+     */
+    void selectionRangesChanged(PositionSelection added, PositionSelection removed, int selectedCount);
+
+    /**
+     * Called when the {@code RealmResults} changed in a way which removed selected items or moved them to different
+     * positions. The selected items themselves haven't changed (other than those which were removed), but their
+     * positions have, so any positions held on to from earlier calls are stale and should be re-read from {@code
+     * selection}.
+     * <p/>
+     * {@code removed} and {@code selection} are reused by the adapter, so don't hold on to them after this returns.
+     * @param removed   Positions, from <i>before</i> the change, of selected items which were removed. May be empty.
+     * @param selection Selected positions after the change.
+     */
+    void selectedPositionsShifted(PositionSelection removed, PositionSelection selection);
+}
@@ -0,0 +1,443 @@
+package com.bkromhout.rrvl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculates the adapter notifications needed to go from one {@link UIDSnapshot} to another.
+ * <p/>
+ * Since UIDs are unique (see {@link UIDModel#getUID()}), we don't need a general purpose diff. Instead, we index the
+ * old UIDs by position, look up each new UID in that index, and work out removes, moves, and inserts from the result.
+ * Everything is linear in the size of the lists apart from finding which items moved and moving them, which cost
+ * {@code O(log n)} per item.
+ * <p/>
+ * An instance holds on to its working arrays between calls so that repeatedly diffing lists of similar sizes doesn't
+ * create garbage. Instances are not thread-safe.
+ * <p/>
+ * A diff can be given a deadline, in which case it checks the clock every so often and gives up if the deadline has
+ * passed.
+ * <p/>
+ * A diff can also be given an {@link Executor} to look up the new UIDs in parallel, which is where most of the time
+ * goes for very large lists. Everything else is still done on the calling thread, so the notifications are exactly the
+ * same as they would be without it. The calling thread waits for the other threads, but no longer than the deadline.
+ */
+final class UIDDiff {
+    /**
+     * Pass as a deadline to never give up.
+     */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+    /**
+     * The clock is checked once every this many (plus one) iterations of the expensive loops.
+     */
+    private static final int DEADLINE_CHECK_MASK = 1023;
+    /**
+     * Smallest number of UIDs worth looking up on a thread of their own.
+     */
+    private static final int MIN_PARALLEL_CHUNK = 16384;
+
+    private long deadline = NO_DEADLINE;
+    private Executor executor = null;
+    private int parallelism = 1;
+    private int[] newToOld = new int[0];
+    private int[] oldToRank = new int[0];
+    private int[] rankToNew = new int[0];
+    private int[] ranks = new int[0];
+    private int[] rankToSurvivor = new int[0];
+    private int[] tree = new int[0];
+    private int[] lisTails = new int[0];
+    private int[] lisPrev = new int[0];
+    private boolean[] moved = new boolean[0];
+    // Open addressing hash table from long UIDs to their position + 1 (so that 0 means the slot is empty).
+    private long[] longKeys = new long[0];
+    private int[] longValues = new int[0];
+
+    /**
+     * Calculate the notifications needed to go from {@code oldIds} to {@code newIds}.
+     * <p/>
+     * If both snapshots have content versions, items whose version differs are also sent as content changes, after the
+     * structural notifications.
+     * @param oldIds        Old UIDs.
+     * @param newIds        New UIDs.
+     * @param out           Batch to add notifications to.
+     * @param deadlineNanos {@link System#nanoTime()} value after which to give up, or {@link #NO_DEADLINE}.
+     * @return True if the diff was finished, or false if the deadline passed first, in which case {@code out} holds an
+     * incomplete set of notifications and must not be dispatched.
+     */
+    boolean calculate(UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out, long deadlineNanos) {
+        int oldSize = oldIds.size(), newSize = newIds.size();
+        if (newToOld.length < newSize) newToOld = new int[newSize];
+        deadline = deadlineNanos;
+
+        boolean found;
+        if (oldIds instanceof UIDSnapshot.LongUIDSnapshot && newIds instanceof UIDSnapshot.LongUIDSnapshot)
+            found = findOldPositions((UIDSnapshot.LongUIDSnapshot) oldIds, (UIDSnapshot.LongUIDSnapshot) newIds);
+        else found = findOldPositions(oldIds, newIds);
+        if (!found || pastDeadline(0)) return false;
+
+        if (!calculate(newToOld, oldSize, newSize, out)) return false;
+        if (oldIds.hasVersions() && newIds.hasVersions()) addContentChanges(oldIds, newIds, out);
+        return true;
+    }
+
+    /**
+     * Set the executor to use for looking up new UIDs in parallel.
+     * @param executor    Executor to hand chunks of work to, or null to do everything on the calling thread.
+     * @param parallelism Most chunks to split the work into, including the one done on the calling thread.
+     */
+    void setExecutor(Executor executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Check whether we've passed {@link #deadline}. Only actually looks at the clock once every {@link
+     * #DEADLINE_CHECK_MASK} + 1 iterations.
+     * @param iteration Current iteration of the calling loop.
+     * @return True if the diff should give up.
+     */
+    private boolean pastDeadline(int iteration) {
+        return deadline != NO_DEADLINE && (iteration & DEADLINE_CHECK_MASK) == 0 && System.nanoTime() > deadline;
+    }
+
+    /**
+     * Add content changes for the items in both snapshots whose content versions differ, at their new positions, with
+     * runs of changed items sent as ranges. Must be called after {@link #calculate(int[], int, int, UpdateBatch)}.
+     */
+    private void addContentChanges(UIDSnapshot oldIds, UIDSnapshot newIds, UpdateBatch out) {
+        int newSize = newIds.size();
+        int runStart = -1;
+        for (int i = 0; i < newSize; i++) {
+            int oldPos = newToOld[i];
+            if (oldPos != -1 && oldIds.getVersion(oldPos) != newIds.getVersion(i)) {
+                if (runStart == -1) runStart = i;
+            } else if (runStart != -1) {
+                out.addContentChange(runStart, i - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart != -1) out.addContentChange(runStart, newSize - runStart);
+    }
+
+    /**
+     * Add content changes for items whose content versions differ between two ranges of snapshots which are known to
+     * hold the same UIDs in the same order, such as the part of the old list which is still there after an append.
+     * Does nothing unless both snapshots have content versions.
+     * @param oldIds   Old UIDs.
+     * @param oldStart Start of the range in {@code oldIds}.
+     * @param newIds   New UIDs.
+     * @param newStart Start of the range in {@code newIds}, which is also where changes are sent.
+     * @param count    Size of the ranges.
+     * @param out      Batch to add notifications to.
+     */
+    static void addAlignedContentChanges(UIDSnapshot oldIds, int oldStart, UIDSnapshot newIds, int newStart, int count,
+                                         UpdateBatch out) {
+        if (!oldIds.hasVersions() || !newIds.hasVersions()) return;
+        // The batch merges neighboring changes into ranges for us.
+        for (int i = 0; i < count; i++) {
+            if (oldIds.getVersion(oldStart + i) != newIds.getVersion(newStart + i))
+                out.addContentChange(newStart + i, 1);
+        }
+    }
+
+    /**
+     * Fill {@link #newToOld} with the position in {@code oldIds} of each UID in {@code newIds}, or -1 if it is new.
+     * @return True if finished, or false if {@link #deadline} passed first.
+     */
+    private boolean findOldPositions(UIDSnapshot oldIds, final UIDSnapshot newIds) {
+        int oldSize = oldIds.size(), newSize = newIds.size();
+        final HashMap<Object, Integer> oldPositions = new HashMap<>(Math.max((int) (oldSize / .75f) + 1, 16));
+        for (int i = 0; i < oldSize; i++) {
+            if (pastDeadline(i)) return false;
+            oldPositions.put(oldIds.getUID(i), i);
+        }
+
+        final int[] out = newToOld;
+        return forEachChunk(newSize, new ChunkTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to && !pastDeadline(i - from); i++) {
+                    Integer oldPos = oldPositions.get(newIds.getUID(i));
+                    out[i] = oldPos == null ? -1 : oldPos;
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #findOldPositions(UIDSnapshot, UIDSnapshot)}, but uses a primitive hash table so that nothing is
+     * boxed.
+     */
+    private boolean findOldPositions(UIDSnapshot.LongUIDSnapshot oldIds, final UIDSnapshot.LongUIDSnapshot newIds) {
+        int oldSize = oldIds.size(), newSize = newIds.size();
+
+        // Keep the table at most half full, with a power of two capacity so we can mask instead of mod.
+        int capacity = Integer.highestOneBit(Math.max(oldSize, 8) * 2 - 1) << 1;
+        if (longKeys.length < capacity) {
+            longKeys = new long[capacity];
+            longValues = new int[capacity];
+        } else {
+            capacity = longKeys.length;
+            Arrays.fill(longValues, 0);
+        }
+        final int mask = capacity - 1;
+        // Other threads may still be using these after we give up on them, so they read from locals rather than fields.
+        final long[] keys = longKeys;
+        final int[] values = longValues;
+        final int[] out = newToOld;
+
+        for (int i = 0; i < oldSize; i++) {
+            if (pastDeadline(i)) return false;
+            long key = oldIds.getLongUID(i);
+            int slot = hash(key) & mask;
+            while (values[slot] != 0) slot = (slot + 1) & mask;
+            keys[slot] = key;
+            values[slot] = i + 1;
+        }
+
+        return forEachChunk(newSize, new ChunkTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to && !pastDeadline(i - from); i++) {
+                    long key = newIds.getLongUID(i);
+                    int slot = hash(key) & mask;
+                    int oldPos = -1;
+                    while (values[slot] != 0) {
+                        if (keys[slot] == key) {
+                            oldPos = values[slot] - 1;
+                            break;
+                        }
+                        slot = (slot + 1) & mask;
+                    }
+                    out[i] = oldPos;
+                }
+            }
+        });
+    }
+
+    /**
+     * Run {@code task} over the range {@code [0, size)}. If we have an {@link #executor} and the range is large enough,
+     * it is split into chunks which are run in parallel, with the first run on the calling thread. Returns once every
+     * chunk is done, or once {@link #deadline} has passed.
+     * @param size Size of the range.
+     * @param task Task to run on each chunk of the range.
+     * @return True if every chunk is done, or false if {@link #deadline} passed while waiting for other threads.
+     */
+    private boolean forEachChunk(int size, final ChunkTask task) {
+        int chunks = executor == null ? 1 : Math.min(parallelism, size / MIN_PARALLEL_CHUNK);
+        if (chunks <= 1) {
+            task.run(0, size);
+            return true;
+        }
+
+        final CountDownLatch done = new CountDownLatch(chunks - 1);
+        int chunkSize = (size + chunks - 1) / chunks;
+        for (int c = 1; c < chunks; c++) {
+            final int from = c * chunkSize, to = Math.min(size, from + chunkSize);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(from, to);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        task.run(0, chunkSize);
+
+        // The other chunks write to our arrays, so we can't go on until they've finished, even if we're interrupted.
+        boolean interrupted = false, finished;
+        while (true) {
+            try {
+                if (deadline == NO_DEADLINE) {
+                    done.await();
+                    finished = true;
+                } else {
+                    finished = done.await(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        // If we've run out of time, the other chunks may still be writing to our arrays, so leave them to it.
+        if (!finished) {
+            newToOld = new int[0];
+            longKeys = new long[0];
+            longValues = new int[0];
+        }
+        return finished;
+    }
+
+    /**
+     * Work done on one chunk of a range by {@link #forEachChunk(int, ChunkTask)}.
+     */
+    private interface ChunkTask {
+        void run(int from, int to);
+    }
+
+    private static int hash(long key) {
+        // Mix the bits so that sequential keys don't all land in neighboring slots.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Calculate the notifications needed to go from an old list to a new list, given where each item in the new list
+     * was in the old list.
+     * <p/>
+     * Notifications are added to {@code out} in the order that they must be dispatched: removes (from the end of the
+     * list backwards, so that positions are still the old ones), then moves, then inserts (from the start of the list
+     * forwards, so that positions are the new ones).
+     * @param newToOld Old position of the item at each position in the new list, or -1 if the item is new.
+     * @param oldSize  Size of the old list.
+     * @param newSize  Size of the new list.
+     * @param out      Batch to add notifications to.
+     * @return True if the diff was finished, or false if {@link #deadline} passed first.
+     */
+    boolean calculate(int[] newToOld, int oldSize, int newSize, UpdateBatch out) {
+        // Rank each item which survives in the order that it appears in the new list.
+        if (oldToRank.length < oldSize) oldToRank = new int[oldSize];
+        Arrays.fill(oldToRank, 0, oldSize, -1);
+        int maxSurvivors = Math.min(oldSize, newSize);
+        if (rankToNew.length < maxSurvivors) rankToNew = new int[maxSurvivors];
+        int survivorCount = 0;
+        for (int i = 0; i < newSize; i++) {
+            if (newToOld[i] == -1) continue;
+            oldToRank[newToOld[i]] = survivorCount;
+            rankToNew[survivorCount++] = i;
+        }
+
+        // Removes, from the back of the list to the front, with runs of removed items sent as ranges.
+        int runEnd = -1;
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (oldToRank[i] == -1) {
+                if (runEnd == -1) runEnd = i;
+            } else if (runEnd != -1) {
+                out.addRemove(i + 1, runEnd - i);
+                runEnd = -1;
+            }
+        }
+        if (runEnd != -1) out.addRemove(0, runEnd + 1);
+
+        // Ranks of the surviving items, in the order they appear in the old list.
+        if (ranks.length < survivorCount) ranks = new int[survivorCount];
+        for (int i = 0, s = 0; i < oldSize; i++) if (oldToRank[i] != -1) ranks[s++] = oldToRank[i];
+        if (!findMovedItems(survivorCount) || !addMoves(survivorCount, out)) return false;
+
+        // Inserts, from the front of the list to the back, with runs of inserted items sent as ranges.
+        int runStart = -1;
+        for (int i = 0; i < newSize; i++) {
+            if (newToOld[i] == -1) {
+                if (runStart == -1) runStart = i;
+            } else if (runStart != -1) {
+                out.addInsert(runStart, i - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart != -1) out.addInsert(runStart, newSize - runStart);
+        return true;
+    }
+
+    /**
+     * Decide which of the surviving items need to be moved, filling in {@link #moved}.
+     * <p/>
+     * Items which aren't moved keep their relative order, so they must have increasing ranks. The fewest moves are
+     * needed when we leave the longest increasing subsequence of ranks where it is and move everything else, which we
+     * find with patience sorting.
+     * @param count Number of surviving items.
+     * @return True if finished, or false if {@link #deadline} passed first.
+     */
+    private boolean findMovedItems(int count) {
+        if (moved.length < count) moved = new boolean[count];
+        if (lisTails.length < count) {
+            lisTails = new int[count];
+            lisPrev = new int[count];
+        }
+
+        // lisTails[l] is the index of the smallest rank which ends an increasing subsequence of length l + 1.
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (pastDeadline(i)) return false;
+            int lo = 0, hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ranks[lisTails[mid]] < ranks[i]) lo = mid + 1;
+                else hi = mid;
+            }
+            lisPrev[i] = lo > 0 ? lisTails[lo - 1] : -1;
+            lisTails[lo] = i;
+            if (lo == length) length++;
+        }
+
+        Arrays.fill(moved, 0, count, true);
+        for (int i = length > 0 ? lisTails[length - 1] : -1; i != -1; i = lisPrev[i]) moved[i] = false;
+        return true;
+    }
+
+    /**
+     * Add moves for the surviving items which need them.
+     * <p/>
+     * Items are moved in rank order, each one to just after the item ranked before it. To work out the current
+     * position of an item as earlier moves shuffle things around, we keep counts of the items in "slots" in a Fenwick
+     * tree. Slot 0 holds items moved to the front of the list, and slot {@code s + 1} holds surviving item {@code s}
+     * (while it hasn't been moved) followed by any items moved to just after it.
+     * @param count Number of surviving items.
+     * @param out   Batch to add notifications to.
+     * @return True if finished, or false if {@link #deadline} passed first.
+     */
+    private boolean addMoves(int count, UpdateBatch out) {
+        if (rankToSurvivor.length < count) rankToSurvivor = new int[count];
+        boolean anyMoved = false;
+        for (int s = 0; s < count; s++) {
+            rankToSurvivor[ranks[s]] = s;
+            anyMoved |= moved[s];
+        }
+        if (!anyMoved) return true;
+
+        // Build the tree in linear time; every surviving item's slot starts with a count of one.
+        int treeSize = count + 2;
+        if (tree.length < treeSize) tree = new int[treeSize];
+        Arrays.fill(tree, 0, treeSize, 0);
+        for (int i = 2; i < treeSize; i++) {
+            tree[i]++;
+            int parent = i + (i & -i);
+            if (parent < treeSize) tree[parent] += tree[i];
+        }
+
+        int anchorSlot = 0;
+        for (int r = 0; r < count; r++) {
+            if (pastDeadline(r)) return false;
+            int s = rankToSurvivor[r];
+            if (!moved[s]) {
+                anchorSlot = s + 1;
+                continue;
+            }
+            int from = treeSum(s);
+            treeAdd(s + 1, -1, treeSize);
+            int to = treeSum(anchorSlot);
+            treeAdd(anchorSlot, 1, treeSize);
+            out.addMove(from, to);
+        }
+        return true;
+    }
+
+    private void treeAdd(int slot, int delta, int treeSize) {
+        for (int i = slot + 1; i < treeSize; i += i & -i) tree[i] += delta;
+    }
+
+    /**
+     * @return The total count of the slots from 0 to {@code slot}, inclusive.
+     */
+    private int treeSum(int slot) {
+        int sum = 0;
+        for (int i = slot + 1; i > 0; i -= i & -i) sum += tree[i];
+        return sum;
+    }
+}
@@ -0,0 +1,266 @@
+package com.bkromhout.rrvl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the UIDs of the items in a {@code RealmResults}, in order.
+ * @see UIDDiff
+ */
+abstract class UIDSnapshot {
+    static final UIDSnapshot EMPTY = new ObjectUIDSnapshot(new ArrayList<>(0));
+
+    /**
+     * Content versions of the items, in the same order as the UIDs, or null if we aren't keeping track of them.
+     */
+    private long[] versions = null;
+
+    /**
+     * Get the number of UIDs in this snapshot.
+     * @return Number of UIDs.
+     */
+    abstract int size();
+
+    /**
+     * Get the UID at {@code position}.
+     * @param position Position.
+     * @return UID. Will be boxed if this snapshot holds primitive UIDs.
+     */
+    abstract Object getUID(int position);
+
+    /**
+     * Get the position of {@code uid} in this snapshot.
+     * @param uid UID to look for.
+     * @return Position of the UID, or -1 if it isn't in this snapshot.
+     */
+    abstract int indexOf(Object uid);
+
+    final boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Check whether the {@code count} UIDs in this snapshot starting at {@code start} are the same as those in {@code
+     * other} starting at {@code otherStart}.
+     * @param start      Position in this snapshot to start comparing at.
+     * @param other      Snapshot to compare against.
+     * @param otherStart Position in {@code other} to start comparing at.
+     * @param count      Number of UIDs to compare.
+     * @return True if the ranges hold the same UIDs.
+     */
+    boolean regionMatches(int start, UIDSnapshot other, int otherStart, int count) {
+        for (int i = 0; i < count; i++) if (!getUID(start + i).equals(other.getUID(otherStart + i))) return false;
+        return true;
+    }
+
+    /**
+     * Start keeping track of content versions (see {@link ContentVersionModel}) alongside the UIDs, making sure that
+     * there is room for {@code capacity} of them. Versions are then filled in using {@link #setVersion(int, long)}.
+     * @param capacity Number of UIDs which will be added.
+     */
+    final void trackVersions(int capacity) {
+        if (versions == null || versions.length < capacity) versions = new long[capacity];
+    }
+
+    /**
+     * Stop keeping track of content versions.
+     */
+    final void dropVersions() {
+        versions = null;
+    }
+
+    final boolean hasVersions() {
+        return versions != null;
+    }
+
+    final long getVersion(int position) {
+        return versions[position];
+    }
+
+    final void setVersion(int position, long version) {
+        versions[position] = version;
+    }
+
+    /**
+     * Remove {@code count} UIDs starting at {@code position}.
+     * @param position Position of the first UID to remove.
+     * @param count    Number of UIDs to remove.
+     */
+    final void remove(int position, int count) {
+        if (versions != null)
+            System.arraycopy(versions, position + count, versions, position, size() - position - count);
+        removeUIDs(position, count);
+    }
+
+    /**
+     * Shift the UIDs from {@code position} onwards back by {@code count}. The UIDs in the gap are undefined until they
+     * are filled in using {@link #set(int, UIDModel)}.
+     * @param position Position to open the gap at.
+     * @param count    Size of the gap.
+     */
+    final void openGap(int position, int count) {
+        if (versions != null) {
+            int size = size();
+            if (versions.length < size + count)
+                versions = Arrays.copyOf(versions, Math.max(size + count, versions.length * 3 / 2));
+            System.arraycopy(versions, position, versions, position + count, size - position);
+        }
+        openGapInUIDs(position, count);
+    }
+
+    /**
+     * Set the UID (and content version, if we're keeping track of them) at {@code position} to that of {@code item}.
+     * @param position Position.
+     * @param item     Item whose UID should be used.
+     */
+    final void set(int position, UIDModel item) {
+        setUID(position, item);
+        if (versions != null) versions[position] = ((ContentVersionModel) item).getContentVersion();
+    }
+
+    /**
+     * Get a copy of this snapshot which can be modified without affecting this one.
+     * @return Copy of this snapshot.
+     */
+    final UIDSnapshot copy() {
+        UIDSnapshot copy = copyUIDs();
+        if (versions != null) copy.versions = Arrays.copyOf(versions, size());
+        return copy;
+    }
+
+    abstract void removeUIDs(int position, int count);
+
+    abstract void openGapInUIDs(int position, int count);
+
+    abstract void setUID(int position, UIDModel item);
+
+    abstract UIDSnapshot copyUIDs();
+
+    /**
+     * Snapshot of UIDs as a list of objects, for models which only implement {@link UIDModel}.
+     */
+    static final class ObjectUIDSnapshot extends UIDSnapshot {
+        private final List uids;
+
+        ObjectUIDSnapshot(List uids) {
+            this.uids = uids;
+        }
+
+        @Override
+        int size() {
+            return uids.size();
+        }
+
+        @Override
+        Object getUID(int position) {
+            return uids.get(position);
+        }
+
+        @Override
+        int indexOf(Object uid) {
+            return uids.indexOf(uid);
+        }
+
+        @Override
+        void removeUIDs(int position, int count) {
+            uids.subList(position, position + count).clear();
+        }
+
+        @Override
+        void openGapInUIDs(int position, int count) {
+            //noinspection unchecked
+            uids.addAll(position, Collections.nCopies(count, null));
+        }
+
+        @Override
+        void setUID(int position, UIDModel item) {
+            //noinspection unchecked
+            uids.set(position, item.getUID());
+        }
+
+        @Override
+        UIDSnapshot copyUIDs() {
+            //noinspection unchecked
+            return new ObjectUIDSnapshot(new ArrayList(uids));
+        }
+    }
+
+    /**
+     * Snapshot of UIDs as an array of {@code long}s, for models which implement {@link LongUIDModel}. The array is
+     * reused when the snapshot is refilled, so long as it is large enough.
+     */
+    static final class LongUIDSnapshot extends UIDSnapshot {
+        private long[] uids = new long[0];
+        private int size = 0;
+
+        /**
+         * Empty this snapshot and make sure that it has room for {@code capacity} UIDs.
+         * @param capacity Number of UIDs which will be added.
+         */
+        void reset(int capacity) {
+            if (uids.length < capacity) uids = new long[capacity];
+            size = 0;
+        }
+
+        void add(long uid) {
+            uids[size++] = uid;
+        }
+
+        long getLongUID(int position) {
+            return uids[position];
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        Object getUID(int position) {
+            return uids[position];
+        }
+
+        @Override
+        boolean regionMatches(int start, UIDSnapshot other, int otherStart, int count) {
+            if (!(other instanceof LongUIDSnapshot)) return super.regionMatches(start, other, otherStart, count);
+            long[] otherUids = ((LongUIDSnapshot) other).uids;
+            for (int i = 0; i < count; i++) if (uids[start + i] != otherUids[otherStart + i]) return false;
+            return true;
+        }
+
+        @Override
+        int indexOf(Object uid) {
+            long longUid = (Long) uid;
+            for (int i = 0; i < size; i++) if (uids[i] == longUid) return i;
+            return -1;
+        }
+
+        @Override
+        void removeUIDs(int position, int count) {
+            System.arraycopy(uids, position + count, uids, position, size - position - count);
+            size -= count;
+        }
+
+        @Override
+        void openGapInUIDs(int position, int count) {
+            if (uids.length < size + count) uids = Arrays.copyOf(uids, Math.max(size + count, uids.length * 3 / 2));
+            System.arraycopy(uids, position, uids, position + count, size - position);
+            size += count;
+        }
+
+        @Override
+        void setUID(int position, UIDModel item) {
+            uids[position] = ((LongUIDModel) item).getLongUID();
+        }
+
+        @Override
+        UIDSnapshot copyUIDs() {
+            LongUIDSnapshot copy = new LongUIDSnapshot();
+            copy.uids = Arrays.copyOf(uids, size);
+            copy.size = size;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.bkromhout.rrvl;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.Arrays;
+
+/**
+ * An ordered batch of adapter notifications which, when dispatched in order, will bring a {@code RecyclerView} from
+ * one snapshot of an adapter's data to another.
+ * <p/>
+ * Operations are stored as packed {@code int} triples rather than as objects so that building a batch for a large list
+ * doesn't create an object per operation.
+ * <p/>
+ * Ranges which touch the range of the operation added just before them (and are of the same type) are merged into it,
+ * and empty ranges are dropped, so the batch never holds more notifications than it needs to. The batch also keeps
+ * track of how much the item count changes, so that it can be checked before being dispatched.
+ */
+final class UpdateBatch {
+    static final int INSERT = 0;
+    static final int REMOVE = 1;
+    static final int MOVE = 2;
+    static final int CHANGE = 3;
+    static final int CONTENT_CHANGE = 4;
+
+    private static final int OP_WIDTH = 3;
+
+    /**
+     * Packed operations; each operation is {@code [type, first, second]}. For inserts, removes, and changes, {@code
+     * first} is the position and {@code second} the item count. For moves they are the from and to positions.
+     */
+    private int[] ops = new int[OP_WIDTH * 8];
+    private int size = 0;
+    private int moveCount = 0;
+    private int structuralCount = 0;
+    private int sizeDelta = 0;
+
+    /**
+     * Add an insertion of {@code count} items at {@code position}.
+     * @param position Position of the first inserted item.
+     * @param count    Number of items inserted.
+     */
+    void addInsert(int position, int count) {
+        if (count <= 0) return;
+        sizeDelta += count;
+        // Inserting anywhere within or at either end of the block we just inserted just makes that block bigger.
+        if (lastTypeIs(INSERT) && position >= lastFirst() && position <= lastFirst() + lastSecond()) {
+            setLast(lastFirst(), lastSecond() + count);
+        } else {
+            add(INSERT, position, count);
+            structuralCount++;
+        }
+    }
+
+    /**
+     * Add a removal of {@code count} items starting at {@code position}.
+     * @param position Position of the first removed item.
+     * @param count    Number of items removed.
+     */
+    void addRemove(int position, int count) {
+        if (count <= 0) return;
+        sizeDelta -= count;
+        // Removing a range which covers or touches the spot where we just removed a block makes one bigger removal.
+        if (lastTypeIs(REMOVE) && position <= lastFirst() && position + count >= lastFirst()) {
+            setLast(position, lastSecond() + count);
+        } else {
+            add(REMOVE, position, count);
+            structuralCount++;
+        }
+    }
+
+    /**
+     * Add a move of a single item.
+     * @param from Position the item is moved from.
+     * @param to   Position the item is moved to, after having been removed from {@code from}.
+     */
+    void addMove(int from, int to) {
+        add(MOVE, from, to);
+        moveCount++;
+    }
+
+    /**
+     * Add a change of {@code count} items starting at {@code position}.
+     * @param position Position of the first changed item.
+     * @param count    Number of items changed.
+     */
+    void addChange(int position, int count) {
+        addChange(CHANGE, position, count);
+    }
+
+    /**
+     * Add a change of {@code count} items starting at {@code position} which is known to be a change to their content,
+     * and which will be sent with {@link RealmRecyclerViewAdapter#CONTENT_CHANGED_PAYLOAD}.
+     * @param position Position of the first changed item.
+     * @param count    Number of items changed.
+     */
+    void addContentChange(int position, int count) {
+        addChange(CONTENT_CHANGE, position, count);
+    }
+
+    private void addChange(int type, int position, int count) {
+        if (count <= 0) return;
+        // Changes don't shift anything, so overlapping or touching ranges can simply be joined.
+        if (lastTypeIs(type) && position <= lastFirst() + lastSecond() && position + count >= lastFirst()) {
+            int start = Math.min(position, lastFirst());
+            setLast(start, Math.max(position + count, lastFirst() + lastSecond()) - start);
+        } else {
+            add(type, position, count);
+        }
+    }
+
+    private boolean lastTypeIs(int type) {
+        return size > 0 && getType(size - 1) == type;
+    }
+
+    private int lastFirst() {
+        return getFirst(size - 1);
+    }
+
+    private int lastSecond() {
+        return getSecond(size - 1);
+    }
+
+    private void setLast(int first, int second) {
+        int i = (size - 1) * OP_WIDTH;
+        ops[i + 1] = first;
+        ops[i + 2] = second;
+    }
+
+    private void add(int type, int first, int second) {
+        if (ops.length < (size + 1) * OP_WIDTH) ops = Arrays.copyOf(ops, ops.length * 2);
+        int i = size * OP_WIDTH;
+        ops[i] = type;
+        ops[i + 1] = first;
+        ops[i + 2] = second;
+        size++;
+    }
+
+    /**
+     * Get the number of operations in this batch.
+     * @return Number of operations.
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Check whether this batch represents a single item having moved, with nothing having been
+     * inserted or removed.
+     * @return True if this batch is a single move, otherwise false.
+     */
+    boolean isSingleMove() {
+        return moveCount == 1 && structuralCount == 0;
+    }
+
+    /**
+     * Get the number of moves in this batch.
+     * @return Number of moves.
+     */
+    int getMoveCount() {
+        return moveCount;
+    }
+
+    /**
+     * Get how much dispatching this batch changes the item count by.
+     * @return Number of items inserted minus the number of items removed.
+     */
+    int getSizeDelta() {
+        return sizeDelta;
+    }
+
+    int getType(int index) {
+        return ops[index * OP_WIDTH];
+    }
+
+    int getFirst(int index) {
+        return ops[index * OP_WIDTH + 1];
+    }
+
+    int getSecond(int index) {
+        return ops[index * OP_WIDTH + 2];
+    }
+
+    /**
+     * Work out where the item at {@code position} ends up once the notifications in this batch have been dispatched.
+     * @param position Position before this batch.
+     * @return Position after this batch, or -1 if the item is removed.
+     */
+    int mapPosition(int position) {
+        for (int i = 0; i < size && position != -1; i++) {
+            int first = getFirst(i), second = getSecond(i);
+            switch (getType(i)) {
+                case INSERT:
+                    if (position >= first) position += second;
+                    break;
+                case REMOVE:
+                    if (position >= first + second) position -= second;
+                    else if (position >= first) position = -1;
+                    break;
+                case MOVE:
+                    if (position == first) position = second;
+                    else {
+                        if (position > first) position--;
+                        if (position >= second) position++;
+                    }
+                    break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Remove all operations from this batch so that it may be reused.
+     */
+    void clear() {
+        size = 0;
+        moveCount = 0;
+        structuralCount = 0;
+        sizeDelta = 0;
+    }
+
+    /**
+     * Send the operations in this batch, in order, to {@code adapter}.
+     * @param adapter Adapter to notify.
+     */
+    void dispatchTo(RecyclerView.Adapter<?> adapter) {
+        for (int i = 0; i < size; i++) {
+            int first = getFirst(i), second = getSecond(i);
+            switch (getType(i)) {
+                case INSERT:
+                    adapter.notifyItemRangeInserted(first, second);
+                    break;
+                case REMOVE:
+                    adapter.notifyItemRangeRemoved(first, second);
+                    break;
+                case MOVE:
+                    adapter.notifyItemMoved(first, second);
+                    break;
+                case CHANGE:
+                    adapter.notifyItemRangeChanged(first, second);
+                    break;
+                case CONTENT_CHANGE:
+                    adapter.notifyItemRangeChanged(first, second, RealmRecyclerViewAdapter.CONTENT_CHANGED_PAYLOAD);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.bkromhout.rrvl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PositionSelectionTest {
+    @Test
+    public void overlappingAndTouchingRangesAreMerged() {
+        PositionSelection selection = new PositionSelection();
+        selection.add(2, 4);
+        selection.add(6, 8);
+        selection.add(4, 5);
+        selection.add(3, 7);
+        assertArrayEquals(new int[]{2, 8}, selection.toRangeArray());
+        assertEquals(6, selection.size());
+    }
+
+    @Test
+    public void removingTheMiddleOfARangeSplitsIt() {
+        PositionSelection selection = new PositionSelection();
+        selection.add(0, 10);
+        selection.remove(3, 5);
+        assertArrayEquals(new int[]{0, 3, 5, 10}, selection.toRangeArray());
+        assertEquals(8, selection.size());
+        assertTrue(selection.contains(2));
+        assertFalse(selection.contains(3));
+        assertFalse(selection.contains(4));
+        assertTrue(selection.contains(5));
+    }
+
+    @Test
+    public void removingAcrossRangesTrimsThem() {
+        PositionSelection selection = new PositionSelection();
+        selection.addRangeArray(new int[]{0, 3, 5, 7, 9, 12});
+        selection.remove(2, 10);
+        assertArrayEquals(new int[]{0, 2, 10, 12}, selection.toRangeArray());
+        assertEquals(4, selection.size());
+    }
+
+    @Test
+    public void recordingVariantsOnlyRecordActualChanges() {
+        PositionSelection selection = new PositionSelection(), changed = new PositionSelection();
+        selection.addRangeArray(new int[]{2, 4, 6, 8});
+        selection.add(0, 10, changed);
+        assertArrayEquals(new int[]{0, 2, 4, 6, 8, 10}, changed.toRangeArray());
+
+        changed.clear();
+        selection.remove(1, 3);
+        selection.remove(0, 5, changed);
+        assertArrayEquals(new int[]{0, 1, 3, 5}, changed.toRangeArray());
+    }
+
+    @Test
+    public void shiftForInsertSplitsTheRangeItLandsIn() {
+        PositionSelection selection = new PositionSelection();
+        selection.add(2, 6);
+        assertTrue(selection.shiftForInsert(4, 3));
+        assertArrayEquals(new int[]{2, 4, 7, 9}, selection.toRangeArray());
+        assertFalse(selection.shiftForInsert(20, 1));
+    }
+
+    @Test
+    public void shiftForRemoveJoinsTheRangesEitherSide() {
+        PositionSelection selection = new PositionSelection();
+        selection.addRangeArray(new int[]{0, 2, 3, 5, 8, 9});
+        selection.shiftForRemove(2, 1);
+        assertArrayEquals(new int[]{0, 4, 7, 8}, selection.toRangeArray());
+        assertEquals(5, selection.size());
+    }
+
+    @Test
+    public void applyShiftsAndReportsRemovedPositions() {
+        PositionSelection selection = new PositionSelection(), removed = new PositionSelection();
+        selection.addRangeArray(new int[]{1, 3, 5, 6});
+        UpdateBatch batch = new UpdateBatch();
+        batch.addRemove(2, 2);
+        batch.addInsert(0, 1);
+        // 0 [1 2] 3 4 [5] -> 0 [1] 4 [5] -> a 0 [1] 4 [5]
+        assertTrue(selection.apply(batch, removed));
+        assertArrayEquals(new int[]{2, 3, 4, 5}, selection.toRangeArray());
+        assertArrayEquals(new int[]{2, 3}, removed.toRangeArray());
+    }
+
+    @Test
+    public void applyFollowsMovedItems() {
+        PositionSelection selection = new PositionSelection(), removed = new PositionSelection();
+        selection.add(0, 1);
+        UpdateBatch batch = new UpdateBatch();
+        batch.addMove(0, 3);
+        assertTrue(selection.apply(batch, removed));
+        assertArrayEquals(new int[]{3, 4}, selection.toRangeArray());
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    public void applyReportsNothingIfNoSelectedItemsMoved() {
+        PositionSelection selection = new PositionSelection(), removed = new PositionSelection();
+        selection.add(0, 2);
+        UpdateBatch batch = new UpdateBatch();
+        batch.addInsert(2, 3);
+        batch.addRemove(4, 1);
+        batch.addChange(0, 2);
+        assertFalse(selection.apply(batch, removed));
+        assertArrayEquals(new int[]{0, 2}, selection.toRangeArray());
+    }
+
+    @Test
+    public void applyMatchesRandomChanges() {
+        Random random = new Random(7);
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            // Give each item an ID equal to its starting position, then track the IDs through random changes.
+            int count = random.nextInt(30) + 1;
+            List<Integer> items = new ArrayList<>();
+            Set<Integer> selected = new HashSet<>();
+            PositionSelection selection = new PositionSelection(), removed = new PositionSelection();
+            for (int i = 0; i < count; i++) {
+                items.add(i);
+                if (random.nextInt(3) == 0) {
+                    selected.add(i);
+                    selection.add(i, i + 1);
+                }
+            }
+            Set<Integer> expectedRemoved = new HashSet<>();
+            UpdateBatch batch = new UpdateBatch();
+            int nextId = count;
+            for (int op = random.nextInt(6); op > 0; op--) {
+                int type = random.nextInt(3);
+                if (type == 0) {
+                    int position = random.nextInt(items.size() + 1), inserted = random.nextInt(3) + 1;
+                    for (int i = 0; i < inserted; i++) items.add(position, nextId++);
+                    batch.addInsert(position, inserted);
+                } else if (type == 1 && !items.isEmpty()) {
+                    int position = random.nextInt(items.size());
+                    int removedCount = Math.min(random.nextInt(3) + 1, items.size() - position);
+                    for (int i = 0; i < removedCount; i++) {
+                        int id = items.remove(position);
+                        if (selected.remove(id)) expectedRemoved.add(id);
+                    }
+                    batch.addRemove(position, removedCount);
+                } else if (type == 2 && items.size() > 1) {
+                    int from = random.nextInt(items.size()), to = random.nextInt(items.size());
+                    items.add(to, items.remove(from));
+                    batch.addMove(from, to);
+                }
+            }
+
+            boolean expectedShift = !expectedRemoved.isEmpty();
+            boolean shifted = selection.apply(batch, removed);
+            for (int i = 0; i < items.size(); i++) {
+                assertEquals("position " + i, selected.contains(items.get(i)), selection.contains(i));
+                if (selected.contains(items.get(i)) && items.get(i) != i) expectedShift = true;
+            }
+            assertEquals(selected.size(), selection.size());
+            assertEquals(expectedRemoved.size(), removed.size());
+            for (int id : expectedRemoved) assertTrue(removed.contains(id));
+            assertEquals(expectedShift, shifted);
+        }
+    }
+
+    @Test
+    public void rangeArrayRoundTrips() {
+        PositionSelection selection = new PositionSelection(), copy = new PositionSelection();
+        selection.addRangeArray(new int[]{0, 2, 5, 9, 11, 12});
+        copy.addRangeArray(selection.toRangeArray());
+        assertArrayEquals(selection.toRangeArray(), copy.toRangeArray());
+        assertEquals(selection.size(), copy.size());
+    }
+}
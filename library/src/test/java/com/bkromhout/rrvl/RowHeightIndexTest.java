@@ -0,0 +1,92 @@
+package com.bkromhout.rrvl;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowHeightIndexTest {
+    @Test
+    public void offsetsArePrefixSumsOfMeasuredHeights() {
+        Random random = new Random(11);
+        RowHeightIndex index = new RowHeightIndex();
+        for (int iteration = 0; iteration < 200; iteration++) {
+            int count = random.nextInt(100) + 1;
+            int[] heights = new int[count];
+            index.reset(count);
+            for (int i = 0; i < count; i++) {
+                heights[i] = random.nextInt(200) + 1;
+                index.setHeight(i, heights[i]);
+            }
+            // Change a few heights after the trees have been built, so that they're updated in place.
+            index.getOffsetOf(0);
+            for (int j = random.nextInt(5); j > 0; j--) {
+                int position = random.nextInt(count);
+                heights[position] = random.nextInt(200) + 1;
+                index.setHeight(position, heights[position]);
+            }
+
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                assertEquals("offset of " + i, offset, index.getOffsetOf(i));
+                assertEquals("row at start of " + i, i, index.findPosition(offset));
+                assertEquals("row at end of " + i, i, index.findPosition(offset + heights[i] - 1));
+                offset += heights[i];
+            }
+            assertEquals(offset, index.getOffsetOf(count));
+            assertEquals(offset, index.getTotalHeight());
+        }
+    }
+
+    @Test
+    public void unmeasuredRowsAreTheAverageHeight() {
+        RowHeightIndex index = new RowHeightIndex();
+        index.reset(4);
+        assertFalse(index.hasMeasurements());
+        index.setHeight(0, 10);
+        index.setHeight(1, 30);
+        assertTrue(index.hasMeasurements());
+        assertEquals(80, index.getTotalHeight());
+        assertEquals(60, index.getOffsetOf(3));
+        assertEquals(3, index.findPosition(65));
+    }
+
+    @Test
+    public void findPositionIsClampedToTheRows() {
+        RowHeightIndex index = new RowHeightIndex();
+        assertEquals(0, index.findPosition(100));
+        index.reset(3);
+        for (int i = 0; i < 3; i++) index.setHeight(i, 10);
+        assertEquals(0, index.findPosition(-5));
+        assertEquals(2, index.findPosition(1000));
+    }
+
+    @Test
+    public void insertRemoveAndMoveKeepHeights() {
+        RowHeightIndex index = new RowHeightIndex();
+        index.reset(3);
+        index.setHeight(0, 10);
+        index.setHeight(1, 20);
+        index.setHeight(2, 30);
+
+        index.insert(1, 2);
+        assertEquals(5, index.getItemCount());
+        // 10 ? ? 20 30, with unmeasured rows at the average of 20.
+        assertEquals(50, index.getOffsetOf(3));
+
+        index.remove(1, 2);
+        index.move(0, 2);
+        // 20 30 10
+        assertEquals(3, index.getItemCount());
+        assertEquals(20, index.getOffsetOf(1));
+        assertEquals(50, index.getOffsetOf(2));
+        assertEquals(60, index.getTotalHeight());
+
+        index.forget(1, 1);
+        // 20 ? 10, with the unmeasured row at the average of 15.
+        assertEquals(35, index.getOffsetOf(2));
+    }
+}
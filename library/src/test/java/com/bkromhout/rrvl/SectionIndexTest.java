@@ -0,0 +1,135 @@
+package com.bkromhout.rrvl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SectionIndexTest {
+    private final List<String> texts = new ArrayList<>();
+    private final BubbleTextProvider provider = new BubbleTextProvider() {
+        @Override
+        public String getFastScrollBubbleText(int position) {
+            return texts.get(position);
+        }
+    };
+    private final SectionIndex index = new SectionIndex();
+
+    @Test
+    public void runsOfEqualTextAreOneSection() {
+        texts.addAll(Arrays.asList("A", "A", "B", "C", "C", "C", null, null));
+        index.rebuild(provider, texts.size());
+        assertEquals(4, index.getSectionCount());
+        assertIndexMatches();
+        assertNull(index.getText(-1));
+        assertNull(index.getText(texts.size()));
+    }
+
+    @Test
+    public void removingASectionMergesItsNeighbours() {
+        texts.addAll(Arrays.asList("A", "A", "B", "A"));
+        index.rebuild(provider, texts.size());
+        texts.remove(2);
+        index.remove(2, 1);
+        assertEquals(1, index.getSectionCount());
+        assertIndexMatches();
+    }
+
+    @Test
+    public void insertingIntoASectionSplitsIt() {
+        texts.addAll(Arrays.asList("A", "A", "A"));
+        index.rebuild(provider, texts.size());
+        texts.addAll(1, Arrays.asList("B", "B"));
+        index.insert(provider, 1, 2);
+        assertEquals(3, index.getSectionCount());
+        assertIndexMatches();
+    }
+
+    @Test
+    public void movedItemsKeepTheirText() {
+        texts.addAll(Arrays.asList("A", "B", "B", "C"));
+        index.rebuild(provider, texts.size());
+        texts.add(3, texts.remove(0));
+        index.move(0, 3);
+        assertEquals(3, index.getSectionCount());
+        assertIndexMatches();
+    }
+
+    @Test
+    public void textCanBeReadOnceABatchIsDone() {
+        // [A, B, C] -> [X, A, B, Y], notified as remove(2), insert(2), insert(0).
+        texts.addAll(Arrays.asList("A", "B", "C"));
+        index.rebuild(provider, texts.size());
+        index.remove(2, 1);
+        index.insert(null, 2, 1);
+        index.insert(null, 0, 1);
+        texts.clear();
+        texts.addAll(Arrays.asList("X", "A", "B", "Y"));
+        index.change(provider, 0, 1);
+        index.change(provider, 3, 1);
+        assertIndexMatches();
+    }
+
+    @Test
+    public void matchesRandomChanges() {
+        Random random = new Random(3);
+        String[] alphabet = {"A", "B", "C", null};
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            texts.clear();
+            for (int i = random.nextInt(20); i > 0; i--) texts.add(alphabet[random.nextInt(alphabet.length)]);
+            index.rebuild(provider, texts.size());
+            for (int op = random.nextInt(8); op > 0; op--) {
+                switch (random.nextInt(4)) {
+                    case 0: {
+                        int position = random.nextInt(texts.size() + 1), count = random.nextInt(3) + 1;
+                        for (int i = 0; i < count; i++) texts.add(position, alphabet[random.nextInt(alphabet.length)]);
+                        index.insert(provider, position, count);
+                        break;
+                    }
+                    case 1: {
+                        if (texts.isEmpty()) break;
+                        int position = random.nextInt(texts.size());
+                        int count = Math.min(random.nextInt(3) + 1, texts.size() - position);
+                        texts.subList(position, position + count).clear();
+                        index.remove(position, count);
+                        break;
+                    }
+                    case 2: {
+                        if (texts.isEmpty()) break;
+                        int from = random.nextInt(texts.size()), to = random.nextInt(texts.size());
+                        texts.add(to, texts.remove(from));
+                        index.move(from, to);
+                        break;
+                    }
+                    case 3: {
+                        if (texts.isEmpty()) break;
+                        int position = random.nextInt(texts.size());
+                        texts.set(position, alphabet[random.nextInt(alphabet.length)]);
+                        index.change(provider, position, 1);
+                        break;
+                    }
+                }
+                assertIndexMatches();
+            }
+        }
+    }
+
+    /**
+     * Check that {@link #index} has the text of every item in {@link #texts}, with one section per run of equal text.
+     */
+    private void assertIndexMatches() {
+        assertEquals(texts.size(), index.getItemCount());
+        int runs = 0;
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals("text of " + i, texts.get(i), index.getText(i));
+            String text = texts.get(i), prev = i > 0 ? texts.get(i - 1) : null;
+            if (i == 0 || (text == null ? prev != null : !text.equals(prev))) runs++;
+        }
+        assertEquals("section count", runs, index.getSectionCount());
+    }
+}
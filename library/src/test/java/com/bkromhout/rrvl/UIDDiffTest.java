@@ -0,0 +1,154 @@
+package com.bkromhout.rrvl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UIDDiffTest {
+    @Test
+    public void identicalListsNeedNoNotifications() {
+        UpdateBatch batch = new UpdateBatch();
+        assertTrue(new UIDDiff().calculate(longs(1, 2, 3), longs(1, 2, 3), batch, UIDDiff.NO_DEADLINE));
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void singleMoveIsOneMove() {
+        UpdateBatch batch = new UpdateBatch();
+        assertTrue(new UIDDiff().calculate(longs(1, 2, 3, 4, 5), longs(1, 3, 4, 5, 2), batch, UIDDiff.NO_DEADLINE));
+        assertTrue(batch.isSingleMove());
+    }
+
+    @Test
+    public void fromAndToEmpty() {
+        assertRoundTrip(new ArrayList<Long>(), list(1, 2, 3));
+        assertRoundTrip(list(1, 2, 3), new ArrayList<Long>());
+    }
+
+    @Test
+    public void randomChangesRoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            List<Long> oldList = new ArrayList<>();
+            for (long uid = 0, size = random.nextInt(50); uid < size; uid++) oldList.add(uid);
+            List<Long> newList = new ArrayList<>(oldList);
+            long nextUid = 1000;
+            for (int op = random.nextInt(10); op > 0; op--) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        newList.add(random.nextInt(newList.size() + 1), nextUid++);
+                        break;
+                    case 1:
+                        if (!newList.isEmpty()) newList.remove(random.nextInt(newList.size()));
+                        break;
+                    case 2:
+                        if (!newList.isEmpty())
+                            newList.add(random.nextInt(newList.size()), newList.remove(random.nextInt(newList.size())));
+                        break;
+                }
+            }
+            if (random.nextInt(10) == 0) Collections.shuffle(newList, random);
+            assertRoundTrip(oldList, newList);
+        }
+    }
+
+    @Test
+    public void changedContentVersionsAreSentAsContentChanges() {
+        UIDSnapshot oldIds = longs(1, 2, 3, 4), newIds = longs(4, 1, 2, 3);
+        oldIds.trackVersions(4);
+        newIds.trackVersions(4);
+        for (int i = 0; i < 4; i++) oldIds.setVersion(i, 7);
+        for (int i = 0; i < 4; i++) newIds.setVersion(i, 7);
+        newIds.setVersion(2, 8);
+
+        UpdateBatch batch = new UpdateBatch();
+        assertTrue(new UIDDiff().calculate(oldIds, newIds, batch, UIDDiff.NO_DEADLINE));
+        assertEquals(2, batch.size());
+        assertEquals(UpdateBatch.MOVE, batch.getType(0));
+        assertEquals(UpdateBatch.CONTENT_CHANGE, batch.getType(1));
+        assertEquals(2, batch.getFirst(1));
+        assertEquals(1, batch.getSecond(1));
+    }
+
+    @Test
+    public void givesUpOncePastTheDeadline() {
+        UIDSnapshot.LongUIDSnapshot oldIds = new UIDSnapshot.LongUIDSnapshot();
+        UIDSnapshot.LongUIDSnapshot newIds = new UIDSnapshot.LongUIDSnapshot();
+        oldIds.reset(10000);
+        newIds.reset(10000);
+        for (int i = 0; i < 10000; i++) {
+            oldIds.add(i);
+            newIds.add(9999 - i);
+        }
+        assertFalse(new UIDDiff().calculate(oldIds, newIds, new UpdateBatch(), System.nanoTime() - 1));
+    }
+
+    /**
+     * Diff {@code oldList} against {@code newList}, using both kinds of snapshot, and check that applying the resulting
+     * notifications to {@code oldList} gives {@code newList}.
+     */
+    private static void assertRoundTrip(List<Long> oldList, List<Long> newList) {
+        UIDDiff diff = new UIDDiff();
+        UpdateBatch batch = new UpdateBatch();
+        assertTrue(diff.calculate(longs(oldList), longs(newList), batch, UIDDiff.NO_DEADLINE));
+        assertEquals(newList, apply(batch, oldList, newList));
+
+        batch.clear();
+        assertTrue(diff.calculate(new UIDSnapshot.ObjectUIDSnapshot(new ArrayList<>(oldList)),
+                new UIDSnapshot.ObjectUIDSnapshot(new ArrayList<>(newList)), batch, UIDDiff.NO_DEADLINE));
+        assertEquals(newList, apply(batch, oldList, newList));
+    }
+
+    /**
+     * Apply the notifications in {@code batch} to a copy of {@code oldList}, filling inserted positions in from {@code
+     * newList} once they've all been applied.
+     */
+    private static List<Long> apply(UpdateBatch batch, List<Long> oldList, List<Long> newList) {
+        List<Long> list = new ArrayList<>(oldList);
+        for (int i = 0; i < batch.size(); i++) {
+            int first = batch.getFirst(i), second = batch.getSecond(i);
+            switch (batch.getType(i)) {
+                case UpdateBatch.INSERT:
+                    list.addAll(first, Collections.<Long>nCopies(second, null));
+                    break;
+                case UpdateBatch.REMOVE:
+                    list.subList(first, first + second).clear();
+                    break;
+                case UpdateBatch.MOVE:
+                    list.add(second, list.remove(first));
+                    break;
+            }
+        }
+        assertEquals(newList.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) != null) continue;
+            assertFalse("inserted an existing item", oldList.contains(newList.get(i)));
+            list.set(i, newList.get(i));
+        }
+        return list;
+    }
+
+    private static List<Long> list(long... uids) {
+        List<Long> list = new ArrayList<>(uids.length);
+        for (long uid : uids) list.add(uid);
+        return list;
+    }
+
+    private static UIDSnapshot longs(long... uids) {
+        return longs(list(uids));
+    }
+
+    private static UIDSnapshot longs(List<Long> uids) {
+        UIDSnapshot.LongUIDSnapshot snapshot = new UIDSnapshot.LongUIDSnapshot();
+        snapshot.reset(uids.size());
+        for (long uid : uids) snapshot.add(uid);
+        return snapshot;
+    }
+}
@@ -0,0 +1,127 @@
+package com.bkromhout.rrvl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateBatchTest {
+    @Test
+    public void insertsWithinOrTouchingTheLastInsertAreMerged() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addInsert(2, 3);
+        batch.addInsert(5, 1);
+        batch.addInsert(2, 2);
+        assertOps(batch, UpdateBatch.INSERT, 2, 6);
+        assertEquals(6, batch.getSizeDelta());
+    }
+
+    @Test
+    public void removesCoveringOrTouchingTheLastRemoveAreMerged() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addRemove(5, 2);
+        batch.addRemove(3, 2);
+        batch.addRemove(3, 1);
+        assertOps(batch, UpdateBatch.REMOVE, 3, 5);
+        assertEquals(-5, batch.getSizeDelta());
+    }
+
+    @Test
+    public void overlappingChangesAreJoined() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addChange(4, 2);
+        batch.addChange(2, 3);
+        batch.addChange(6, 1);
+        assertOps(batch, UpdateBatch.CHANGE, 2, 5);
+    }
+
+    @Test
+    public void changesAndContentChangesAreKeptApart() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addChange(0, 2);
+        batch.addContentChange(2, 2);
+        assertOps(batch, UpdateBatch.CHANGE, 0, 2, UpdateBatch.CONTENT_CHANGE, 2, 2);
+    }
+
+    @Test
+    public void separateRangesAreNotMerged() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addInsert(0, 1);
+        batch.addInsert(3, 1);
+        batch.addRemove(0, 1);
+        batch.addInsert(0, 1);
+        assertOps(batch, UpdateBatch.INSERT, 0, 1, UpdateBatch.INSERT, 3, 1, UpdateBatch.REMOVE, 0, 1,
+                UpdateBatch.INSERT, 0, 1);
+    }
+
+    @Test
+    public void emptyRangesAreDropped() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addInsert(0, 0);
+        batch.addRemove(1, 0);
+        batch.addChange(2, 0);
+        batch.addContentChange(3, 0);
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void singleMoveIsRecognized() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addMove(1, 4);
+        batch.addChange(4, 1);
+        assertTrue(batch.isSingleMove());
+        batch.addInsert(0, 1);
+        assertFalse(batch.isSingleMove());
+    }
+
+    @Test
+    public void clearEmptiesTheBatch() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addInsert(0, 3);
+        batch.addMove(0, 1);
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.getSizeDelta());
+        assertEquals(0, batch.getMoveCount());
+    }
+
+    @Test
+    public void mapPositionFollowsItemsThroughTheBatch() {
+        UpdateBatch batch = new UpdateBatch();
+        batch.addInsert(2, 2);
+        batch.addRemove(6, 2);
+        batch.addMove(0, 3);
+        // 0 1 2 3 4 5 6 7 -> 0 1 a b 2 3 4 5 6 7 -> 0 1 a b 2 3 6 7 -> 1 a b 0 2 3 6 7
+        assertEquals(3, batch.mapPosition(0));
+        assertEquals(0, batch.mapPosition(1));
+        assertEquals(4, batch.mapPosition(2));
+        assertEquals(5, batch.mapPosition(3));
+        assertEquals(-1, batch.mapPosition(4));
+        assertEquals(-1, batch.mapPosition(5));
+        assertEquals(6, batch.mapPosition(6));
+        assertEquals(7, batch.mapPosition(7));
+    }
+
+    @Test
+    public void opsGrowPastTheInitialCapacity() {
+        UpdateBatch batch = new UpdateBatch();
+        for (int i = 0; i < 100; i++) batch.addMove(i, i + 1);
+        assertEquals(100, batch.size());
+        assertEquals(100, batch.getMoveCount());
+        assertEquals(99, batch.getFirst(99));
+        assertEquals(100, batch.getSecond(99));
+    }
+
+    /**
+     * Check that {@code batch} holds exactly {@code ops}, given as {@code [type, first, second]} triples.
+     */
+    private static void assertOps(UpdateBatch batch, int... ops) {
+        assertEquals("operation count", ops.length / 3, batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals("type of " + i, ops[i * 3], batch.getType(i));
+            assertEquals("first of " + i, ops[i * 3 + 1], batch.getFirst(i));
+            assertEquals("second of " + i, ops[i * 3 + 2], batch.getSecond(i));
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package com.bkromhout.rrvl.sample;
 
-import com.bkromhout.rrvl.UIDModel;
+import com.bkromhout.rrvl.LongUIDModel;
 import io.realm.RealmObject;
 import io.realm.annotations.Ignore;
 import io.realm.annotations.Index;
@@ -11,7 +11,7 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Item model.
  */
-public class Item extends RealmObject implements UIDModel {
+public class Item extends RealmObject implements LongUIDModel {
     /**
      * By default, have a 100 space gap between items. This helps us to not have to update every item's position when
      * moving one item.
@@ -44,6 +44,11 @@ public class Item extends RealmObject implements UIDModel {
         return uniqueId;
     }
 
+    @Override
+    public long getLongUID() {
+        return uniqueId;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -49,7 +49,7 @@ public class ItemAdapter extends RealmRecyclerViewAdapter<Item, RecyclerView.Vie
     @Override
     public long getItemId(int position) {
         if (position == super.getItemCount()) return Long.MIN_VALUE;
-        return realmResults.get(position).uniqueId;
+        return (Long) getItemUID(position);
     }
 
     @Override
@@ -64,7 +64,9 @@ public class ItemAdapter extends RealmRecyclerViewAdapter<Item, RecyclerView.Vie
         // If this is the empty view, we have nothing to do.
         if (position == getItemCount() || !(holder instanceof ItemVH)) return;
         final ItemVH vh = (ItemVH) holder;
-        Item item = realmResults.get(position);
+        // The item will be null if it has just been deleted, in which case it's about to be removed from the list.
+        Item item = getItem(position);
+        if (item == null) return;
         vh.name.setText(item.name);
         // We set the unique ID as the tag on a view so that we will be able to get it
         // in the onMove() method.
@@ -114,7 +116,10 @@ public class ItemAdapter extends RealmRecyclerViewAdapter<Item, RecyclerView.Vie
 
     @Override
     public String getFastScrollBubbleText(int position) {
-        return String.valueOf(realmResults.get(position).name.charAt(0));
+        // The footer doesn't have any text.
+        if (position >= super.getItemCount()) return null;
+        Item item = getItem(position);
+        return item != null ? String.valueOf(item.name.charAt(0)) : null;
     }
 
     class ItemVH extends RecyclerView.ViewHolder {